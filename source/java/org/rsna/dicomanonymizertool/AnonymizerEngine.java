@@ -0,0 +1,939 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.log4j.Logger;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.stdstages.anonymizer.*;
+import org.rsna.ctp.stdstages.anonymizer.dicom.*;
+import org.rsna.util.FileUtil;
+
+/**
+ * A reusable anonymization engine. An engine is constructed once from
+ * the scripts, the lookup table and the processing options, after which
+ * it can be called concurrently from any number of threads. The engine
+ * never writes to the console and never exits the JVM; everything it
+ * has to say about an object is returned in an AnonymizerResult.
+ * <p>
+ * The CTP anonymizer stages operate on files, so the stream and buffer
+ * APIs stage the object through temporary files in the engine's temp
+ * directory; the caller never has to manage them.
+ * <p>
+ * Nothing in the engine touches ImageIO until a pixel stage or a frame
+ * check needs to decode an image, so the codec jars are only scanned and
+ * loaded in runs that use them; runs that only anonymize elements do not
+ * pay for the codecs at startup.
+ */
+public class AnonymizerEngine {
+
+	static final Logger logger = Logger.getLogger(AnonymizerEngine.class);
+
+	static final String JPEGBaseline = "1.2.840.10008.1.2.4.50";
+	static final String JPEGLossLess = "1.2.840.10008.1.2.4.70";
+
+	final String filterScript;
+	final Properties daScriptProps;
+	final Properties lutProps;
+	final PixelScript pixelScript;
+	final boolean decompress;
+	final boolean recompress;
+	final boolean setBIRElement;
+	final boolean testmode;
+	final String check;
+	final boolean verbose;
+	File tempDir = null;
+	MemoryBudget memoryBudget = null;
+	int frameParallelism = Runtime.getRuntime().availableProcessors();
+	BufferPool bufferPool = BufferPool.shared;
+	int maxRetries = 0;
+	long retryDelay = 500;
+	long stageTimeout = 0;
+	OutputWriter outputWriter = new OutputWriter();
+	DuplicateIndex duplicateIndex = null;
+	final Set<Attempt> abandonedAttempts = ConcurrentHashMap.newKeySet();
+
+	//The writer for objects staged by the stream and buffer APIs, which need no durability.
+	static final OutputWriter tempWriter = new OutputWriter();
+
+	static final int copyBufferSize = 256 * 1024;
+
+	//The DicomAnonymizer script function that calls a plugin: @call(id, ...)
+	static final Pattern callPattern = Pattern.compile("@call\\(\\s*([^,\\)\\s]+)");
+
+	static ExecutorService stageExecutor = null;
+
+	//The limit on the number of stages that have timed out but are still running.
+	static final int maxAbandonedStages = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	static final Semaphore abandonedStages = new Semaphore(maxAbandonedStages);
+
+	/**
+	 * The exception thrown when a stage does not complete within the stage timeout.
+	 */
+	public static class StageTimeoutException extends Exception {
+		static final long serialVersionUID = 1L;
+		public StageTimeoutException(String stage, long timeout) {
+			super("The "+stage+" stage did not complete in "+timeout+" ms");
+		}
+	}
+
+	/**
+	 * Construct an engine, loading all the scripts and the lookup table once.
+	 * @param filterScriptFile the filter script, or null if all objects are to be accepted.
+	 * @param daScriptFile the anonymizer script, or null if element anonymization is not to be performed.
+	 * @param lookupTableFile the lookup table properties file, or null if no lookup table is to be used.
+	 * @param dpaScriptFile the pixel anonymizer script, or null if pixel anonymization is not to be performed.
+	 * @param decompress true if images are to be decompressed if the pixel anonymizer requires it.
+	 * @param recompress true if images are to be recompressed after pixel anonymization if they were decompressed.
+	 * @param setBIRElement true if the BurnedInAnnotation element is to be set by the pixel anonymizer.
+	 * @param testmode true if the pixel anonymizer is to blank regions in mid-gray.
+	 * @param check null if no frame checking is to be done; otherwise, "first", "last", "all" or "" (last).
+	 * @param verbose true if the result logs are to include the details of every stage.
+	 */
+	public AnonymizerEngine(
+			File filterScriptFile,
+			File daScriptFile,
+			File lookupTableFile,
+			File dpaScriptFile,
+			boolean decompress,
+			boolean recompress,
+			boolean setBIRElement,
+			boolean testmode,
+			String check,
+			boolean verbose) {
+
+		this.filterScript = (filterScriptFile != null) ? FileUtil.getText(filterScriptFile) : null;
+
+		//Note: DAScript caches its Properties, so any overrides that were set in the
+		//cached object before the engine was constructed are included in the copy.
+		if (daScriptFile != null) {
+			daScriptProps = new Properties();
+			daScriptProps.putAll(DAScript.getInstance(daScriptFile).toProperties());
+		}
+		else daScriptProps = null;
+
+		Properties lut = null;
+		if ((lookupTableFile != null) && (daScriptFile != null)) {
+			Properties props = LookupTable.getProperties(lookupTableFile);
+			if (props != null) {
+				lut = new Properties();
+				lut.putAll(props);
+			}
+		}
+		this.lutProps = lut;
+
+		this.pixelScript = (dpaScriptFile != null) ? new PixelScript(dpaScriptFile) : null;
+		this.decompress = decompress;
+		this.recompress = recompress;
+		this.setBIRElement = setBIRElement;
+		this.testmode = testmode;
+		this.check = check;
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Set the directory in which the stream and buffer APIs stage objects.
+	 * @param tempDir the directory, or null to use the system temp directory.
+	 */
+	public void setTempDirectory(File tempDir) {
+		this.tempDir = tempDir;
+	}
+
+	/**
+	 * Set the memory budget against which objects are admitted to the pixel
+	 * stages. An object whose pixel signature matches reserves its decoded
+	 * size for decompression, pixel anonymization and recompression, and
+	 * releases it when they are done; frame checking reserves only the
+	 * frames that it decodes at once. Objects that need no pixel work
+	 * reserve nothing. The budget may be shared by several engines.
+	 * @param memoryBudget the budget, or null if admission is not to be limited.
+	 */
+	public void setMemoryBudget(MemoryBudget memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * Set the maximum number of tasks among which the frames of one
+	 * multi-frame object are divided when all frames are checked, and
+	 * the number of frames of a grayscale object that are decoded, blanked
+	 * and encoded at once by the FramePixelAnonymizer.
+	 * @param frameParallelism the number of tasks, or 1 to process the frames
+	 * sequentially on the processing thread with the CTP stages.
+	 */
+	public void setFrameParallelism(int frameParallelism) {
+		this.frameParallelism = Math.max(1, frameParallelism);
+	}
+
+	/**
+	 * Set the pool from which the engine's I/O buffers are obtained.
+	 * @param bufferPool the pool, which may be shared by several engines.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+		if (duplicateIndex != null) duplicateIndex.setBufferPool(bufferPool);
+	}
+
+	/**
+	 * Get the pool from which the engine's I/O buffers are obtained.
+	 * @return the pool.
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Set the policy for retrying objects that fail with an I/O error.
+	 * Each retry waits twice as long as the one before it.
+	 * @param maxRetries the maximum number of retries, or 0 to disable retrying.
+	 * @param retryDelay the delay before the first retry, in milliseconds.
+	 */
+	public void setRetryPolicy(int maxRetries, long retryDelay) {
+		this.maxRetries = Math.max(0, maxRetries);
+		this.retryDelay = Math.max(0, retryDelay);
+	}
+
+	/**
+	 * Set the time limit for each stage of the pipeline. A stage that
+	 * exceeds the limit is abandoned and the object fails. The abandoned
+	 * stage is interrupted, but a codec that ignores interrupts keeps
+	 * running on a daemon thread until it finishes on its own; the stage's
+	 * scratch files and memory reservation are released only then. When
+	 * too many stages are abandoned at once, a stage that times out is
+	 * waited for instead, so the number of stage threads stays bounded.
+	 * @param stageTimeout the time limit in milliseconds, or 0 for no limit.
+	 */
+	public void setStageTimeout(long stageTimeout) {
+		this.stageTimeout = Math.max(0, stageTimeout);
+	}
+
+	/**
+	 * Set the output stage through which anonymized objects are moved into place.
+	 * @param outputWriter the writer.
+	 */
+	public void setOutputWriter(OutputWriter outputWriter) {
+		this.outputWriter = outputWriter;
+	}
+
+	/**
+	 * Get the output stage through which anonymized objects are moved into place.
+	 * @return the writer.
+	 */
+	public OutputWriter getOutputWriter() {
+		return outputWriter;
+	}
+
+	/**
+	 * Set the index used to skip exact duplicates of SOP instances that
+	 * have already been processed. The index may be shared by several engines.
+	 * @param duplicateIndex the index, or null if duplicates are not to be detected.
+	 */
+	public void setDuplicateIndex(DuplicateIndex duplicateIndex) {
+		this.duplicateIndex = duplicateIndex;
+		if (duplicateIndex != null) duplicateIndex.setBufferPool(bufferPool);
+	}
+
+	/**
+	 * Discard the scratch files of the stages that timed out and are still
+	 * running. The stages may still be writing, so this is only to be called
+	 * when the JVM is about to exit, which ends their threads.
+	 */
+	public void discardAbandonedStages() {
+		for (Attempt attempt : abandonedAttempts) attempt.discard();
+	}
+
+	/**
+	 * Get the IDs of the plugins called by the DicomAnonymizer script,
+	 * in @call(id, ...) functions. Only these plugins need to be started.
+	 * @return the IDs of the referenced plugins, which is empty if the
+	 * script calls no plugins or there is no script.
+	 */
+	public Set<String> getReferencedPlugins() {
+		Set<String> ids = new HashSet<String>();
+		if (daScriptProps != null) {
+			for (Object value : daScriptProps.values()) {
+				Matcher matcher = callPattern.matcher(value.toString());
+				while (matcher.find()) ids.add(matcher.group(1));
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Get the default output file for an input file, using the same
+	 * naming convention as the command line: {name}-an, or {name}-an.dcm
+	 * if the input name ends in .dcm.
+	 * @param inFile the input file.
+	 * @return the output file in the same directory as the input file.
+	 */
+	public static File getDefaultOutputFile(File inFile) {
+		File f = new File(inFile.getAbsolutePath());
+		String name = f.getName();
+		if (name.toLowerCase().endsWith(".dcm")) {
+			name = name.substring(0, name.length()-4)
+					+ "-an"
+					+ name.substring(name.length()-4);
+		}
+		else name += "-an";
+		return new File(f.getParentFile(), name);
+	}
+
+	/**
+	 * Anonymize one file. The input and output files may be the same.
+	 * The output file is written only if the object is anonymized, and
+	 * then it is replaced in a single step by the engine's OutputWriter.
+	 * @param inFile the file to anonymize.
+	 * @param outFile the file in which to store the anonymized object.
+	 * @return the result of the processing.
+	 */
+	public AnonymizerResult anonymize(File inFile, File outFile) {
+		return anonymize(inFile, outFile, outputWriter, null);
+	}
+
+	/**
+	 * Anonymize one file, unless it is a copy of an instance in the duplicate
+	 * index that is still being processed. In that case, nothing is done,
+	 * and the retry task is run when the instance is done, so the caller's
+	 * thread is not held while it waits. The task is expected to call this
+	 * method again for the file, typically by resubmitting it to an executor.
+	 * @param inFile the file to anonymize.
+	 * @param outFile the file in which to store the anonymized object.
+	 * @param retry the task to run when the file can be processed.
+	 * @return the result of the processing, or null if the file was deferred.
+	 */
+	public AnonymizerResult anonymizeOrDefer(File inFile, File outFile, Runnable retry) {
+		return anonymize(inFile, outFile, outputWriter, retry);
+	}
+
+	private AnonymizerResult anonymize(File inFile, File outFile, OutputWriter writer, Runnable retry) {
+		long startTime = System.currentTimeMillis();
+		StringBuffer sb = null;
+		AnonymizerResult.Status status = null;
+		int attempt = 0;
+		while (status == null) {
+			sb = new StringBuffer();
+			try {
+				status = process(inFile, outFile, writer, retry, sb);
+				if (status == null) return null;
+			}
+			catch (Throwable t) {
+				if ((attempt < maxRetries) && isTransient(t)) {
+					long delay = retryDelay << attempt;
+					attempt++;
+					logger.debug("Retry "+attempt+" of "+inFile+" in "+delay+" ms", t);
+					try { Thread.sleep(delay); continue; }
+					catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+				}
+				logger.debug("Unable to process "+inFile, t);
+				if (sb.length() == 0) sb.append("Processing "+inFile+"\n");
+				sb.append("   Exception: "+t+"\n");
+				status = AnonymizerResult.Status.FAILED;
+			}
+		}
+		if (attempt > 0) {
+			//Put the note after the first line, leaving the final outcome last.
+			sb.insert(sb.indexOf("\n") + 1, getRetryNote(attempt));
+		}
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		return new AnonymizerResult(status, inFile, outFile, sb.toString(), elapsedTime);
+	}
+
+	/**
+	 * Anonymize an object from a stream. The output stream is written only
+	 * if the object is anonymized. Neither stream is closed.
+	 * @param in the stream containing the object to anonymize.
+	 * @param out the stream to receive the anonymized object.
+	 * @return the result of the processing.
+	 * @throws IOException if the streams cannot be read or written.
+	 */
+	public AnonymizerResult anonymize(InputStream in, OutputStream out) throws IOException {
+		File inTemp = null;
+		File outTemp = null;
+		try {
+			inTemp = createTempFile();
+			outTemp = createTempFile();
+			copy(in, inTemp);
+			AnonymizerResult result = anonymize(inTemp, outTemp, tempWriter, null);
+			if (result.isOK()) copy(outTemp, out);
+			return new AnonymizerResult(result.status, null, null, result.log, result.elapsedTime);
+		}
+		finally {
+			delete(inTemp);
+			delete(outTemp);
+		}
+	}
+
+	/**
+	 * Anonymize an object from a buffer. The anonymized object is returned
+	 * in a new buffer, available from the result's getOutput() method.
+	 * The input buffer's position is not changed.
+	 * @param in the buffer containing the object, from its position to its limit.
+	 * @return the result of the processing.
+	 * @throws IOException if the object cannot be staged.
+	 */
+	public AnonymizerResult anonymize(ByteBuffer in) throws IOException {
+		File inTemp = null;
+		File outTemp = null;
+		try {
+			inTemp = createTempFile();
+			outTemp = createTempFile();
+			FileOutputStream fos = new FileOutputStream(inTemp);
+			try {
+				ByteBuffer bb = in.duplicate();
+				while (bb.hasRemaining()) fos.getChannel().write(bb);
+			}
+			finally { fos.close(); }
+			AnonymizerResult result = anonymize(inTemp, outTemp, tempWriter, null);
+			AnonymizerResult bufferResult =
+				new AnonymizerResult(result.status, null, null, result.log, result.elapsedTime);
+			if (result.isOK()) {
+				byte[] bytes = new byte[(int)outTemp.length()];
+				DataInputStream dis = new DataInputStream(new FileInputStream(outTemp));
+				try { dis.readFully(bytes); }
+				finally { dis.close(); }
+				bufferResult.output = ByteBuffer.wrap(bytes);
+			}
+			return bufferResult;
+		}
+		finally {
+			delete(inTemp);
+			delete(outTemp);
+		}
+	}
+
+	/**
+	 * Anonymize a collection of files on the common ForkJoinPool, storing
+	 * each anonymized object in the default output file for its input.
+	 * @param paths the files to anonymize.
+	 * @return a future for the results, in the order of the paths.
+	 */
+	public CompletableFuture<List<AnonymizerResult>> anonymizeAll(Iterable<Path> paths) {
+		return anonymizeAll(paths, null, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Anonymize a collection of files.
+	 * @param paths the files to anonymize.
+	 * @param outputs a map from each input path to its output path. If the map is null
+	 * or contains no entry for an input, the default output file is used.
+	 * @param executor the executor on which to run the files.
+	 * @return a future for the results, in the order of the paths.
+	 */
+	public CompletableFuture<List<AnonymizerResult>> anonymizeAll(
+			Iterable<Path> paths,
+			final Map<Path,Path> outputs,
+			Executor executor) {
+
+		final List<CompletableFuture<AnonymizerResult>> futures =
+			new ArrayList<CompletableFuture<AnonymizerResult>>();
+		for (final Path path : paths) {
+			final CompletableFuture<AnonymizerResult> future = new CompletableFuture<AnonymizerResult>();
+			final File inFile = path.toFile();
+			Path outPath = (outputs != null) ? outputs.get(path) : null;
+			final File outFile = (outPath != null) ? outPath.toFile() : getDefaultOutputFile(inFile);
+			//A deferred copy of a duplicate goes back to the executor when it can be processed.
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						AnonymizerResult result = anonymizeOrDefer(inFile, outFile, () -> executor.execute(this));
+						if (result != null) future.complete(result);
+					}
+					catch (Throwable t) { future.completeExceptionally(t); }
+				}
+			});
+			futures.add(future);
+		}
+		return CompletableFuture
+				.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+				.thenApply(v -> {
+					List<AnonymizerResult> results = new ArrayList<AnonymizerResult>(futures.size());
+					for (CompletableFuture<AnonymizerResult> f : futures) results.add(f.join());
+					return results;
+				});
+	}
+
+	//Run the pipeline on one file, appending the details to the StringBuffer.
+	//Return null if the file is a copy of a pending duplicate and was deferred.
+	private AnonymizerResult.Status process(
+			File inFile, File outFile, OutputWriter writer, Runnable retry, final StringBuffer sb) throws Exception {
+		DicomObject dob = null;
+		Attempt attempt = null;
+		boolean committed = false;
+		final File sourceFile = inFile;
+		String indexedUID = null;
+		try {
+			try { dob = new DicomObject(inFile); }
+			catch (Exception ex) {
+				//An input that cannot be read is a failure, not a non-DICOM file.
+				probeRead(inFile);
+				sb.append("Skipping non-DICOM file: "+inFile+"\n");
+				return AnonymizerResult.Status.NOT_DICOM;
+			}
+			boolean isImage = dob.isImage();
+			long checkFootprint = 0;
+			if ((memoryBudget != null) && isImage && (check != null)) {
+				checkFootprint = MemoryBudget.estimateFootprint(dob, getFramesCheckedAtOnce(dob));
+			}
+
+			if ((filterScript != null) && !dob.matches(filterScript)) {
+				sb.append("Skipping non-matching DICOM file: "+inFile+"\n");
+				return AnonymizerResult.Status.NOT_MATCHED;
+			}
+
+			//Skip exact duplicates before the expensive stages.
+			String uid = dob.getSOPInstanceUID();
+			if ((duplicateIndex != null) && (uid != null) && !uid.trim().equals("")) {
+				uid = uid.trim();
+				DuplicateIndex.Check c = duplicateIndex.check(uid, inFile, outFile, retry);
+				if (c == DuplicateIndex.Check.DEFERRED) return null;
+				if (c == DuplicateIndex.Check.DUPLICATE) {
+					DuplicateIndex.Entry entry = duplicateIndex.get(uid);
+					sb.append("Skipping duplicate of "+((entry != null) ? entry.path+" (anonymized as "+entry.output+")" : uid)
+								+": "+inFile+"\n");
+					return AnonymizerResult.Status.DUPLICATE;
+				}
+				sb.append("Anonymizing "+inFile+"\n");
+				if (c == DuplicateIndex.Check.CONFLICT) {
+					DuplicateIndex.Entry entry = duplicateIndex.get(uid);
+					sb.append("   SOPInstanceUID "+uid+" has different content in "
+								+((entry != null) ? entry.path : "an earlier file")+".\n");
+				}
+				else indexedUID = uid;
+			}
+			else sb.append("Anonymizing "+inFile+"\n");
+			boolean ok = false;
+
+			//Each stage writes its own file in a scratch directory next to the output file.
+			attempt = new Attempt(writer, writer.createTempDirectory(outFile));
+
+			//Run the DICOMPixelAnonymizer first before the elements used
+			//in signature matching are modified by the DicomAnonymizer.
+			if (pixelScript != null) {
+				if (isImage) {
+					Signature signature = pixelScript.getMatchingSignature(dob);
+					if (signature != null) {
+						Regions regions = signature.regions;
+						if ((regions != null) && (regions.size() > 0)) {
+							//Admit the object to the pixel stages against the memory budget.
+							if (memoryBudget != null) admit(attempt, MemoryBudget.estimateFootprint(dob), sb);
+
+							//Process the frames of large grayscale objects in parallel when possible.
+							if ((frameParallelism > 1) && FramePixelAnonymizer.canProcess(dob, decompress)) {
+								final File framesInFile = dob.getFile();
+								final File framesOutFile = attempt.newFile("frames");
+								final boolean encode = recompress && dob.isEncapsulated();
+								dob.close();
+								AnonymizerStatus status =
+									runStage("pixel anonymization", attempt, () ->
+										FramePixelAnonymizer.anonymize(
+											framesInFile, framesOutFile, regions, setBIRElement,
+											testmode, encode, frameParallelism, bufferPool));
+								if (verbose || !status.isOK()) sb.append("   The FramePixelAnonymizer returned "+status.getStatus()+".\n");
+								if (status.isOK()) {
+									inFile = framesOutFile;
+									attempt.unreserve();
+									ok = true;
+								}
+								else if (!status.isSKIP()) {
+									//An I/O error is thrown for a retry; anything else is left to the CTP stages.
+									checkIO("pixel anonymization", status, framesInFile, framesOutFile);
+									sb.append("   Running the CTP pixel stages instead ("+status.getMessage()+").\n");
+								}
+								else if (verbose) sb.append("   Running the CTP pixel stages instead ("+status.getMessage()+").\n");
+							}
+
+							//Otherwise run the CTP stages.
+							if (!ok) {
+								boolean decompressed = false;
+								if (decompress &&
+										dob.isEncapsulated() &&
+											!dob.getTransferSyntaxUID().equals(JPEGBaseline)) {
+									dob.close();
+									final File decompressorInFile = inFile;
+									final File decompressorOutFile = attempt.newFile("decompressed");
+									AnonymizerStatus decompressorStatus =
+										runStage("decompression", attempt, () ->
+											DICOMDecompressor.decompress(decompressorInFile, decompressorOutFile));
+									if (decompressorStatus.isOK()) {
+										dob = new DicomObject(decompressorOutFile);
+										decompressed = true;
+									}
+									else {
+										checkIO("decompression", decompressorStatus, decompressorInFile, decompressorOutFile);
+										sb.append("Decompression failure.\n");
+									}
+								}
+								final File pixelInFile = dob.getFile();
+								final File pixelOutFile = attempt.newFile("pixels");
+								dob.close();
+
+								AnonymizerStatus status =
+									runStage("pixel anonymization", attempt, () ->
+										DICOMPixelAnonymizer.anonymize(pixelInFile, pixelOutFile, regions, setBIRElement, testmode));
+								if (verbose || !status.isOK()) sb.append("   The DICOMPixelAnonymizer returned "+status.getStatus()+".\n");
+
+								if (status.isOK()) {
+									inFile = pixelOutFile;
+									if (decompressed && recompress) {
+										final File recompressorOutFile = attempt.newFile("recompressed");
+										AnonymizerStatus recompressorStatus =
+											runStage("recompression", attempt, () -> {
+												Transcoder transcoder = new Transcoder();
+												transcoder.setTransferSyntax(JPEGLossLess);
+												return transcoder.transcode(pixelOutFile, recompressorOutFile);
+											});
+										if (recompressorStatus.isOK()) inFile = recompressorOutFile;
+										else {
+											checkIO("recompression", recompressorStatus, pixelOutFile, recompressorOutFile);
+											sb.append("   Recompression failure; the object is stored uncompressed.\n");
+										}
+									}
+									attempt.unreserve();
+									ok = true;
+								}
+								else {
+									checkIO("pixel anonymization", status, pixelInFile, pixelOutFile);
+									sb.append("   Aborting the processing of this file.\n");
+									return AnonymizerResult.Status.FAILED;
+								}
+							}
+						}
+					}
+					else if (verbose) sb.append("   No matching signature found for pixel anonymization.\n");
+				}
+				else if (verbose) sb.append("   Pixel anonymization skipped - not an image.\n");
+			}
+			dob.close();
+
+			//Now run the DICOMAnonymizer
+			if (daScriptProps != null) {
+				final IntegerTable intTable = null;
+				final File daInFile = inFile;
+				final File daOutFile = attempt.newFile("anonymized");
+				AnonymizerStatus status =
+							runStage("element anonymization", attempt, () ->
+								DICOMAnonymizer.anonymize(daInFile, daOutFile, daScriptProps, lutProps, intTable, false, false));
+				if (verbose || !status.isOK()) sb.append("   The DICOMAnonymizer returned "+status.getStatus()+".\n");
+				if (status.isOK()) {
+					inFile = daOutFile;
+					ok = true;
+				}
+				else {
+					checkIO("element anonymization", status, daInFile, daOutFile);
+					sb.append("   Aborting the processing of this file\n");
+					return AnonymizerResult.Status.FAILED;
+				}
+			}
+			if (!ok) {
+				sb.append("   Anonymization failed.\n");
+				return AnonymizerResult.Status.FAILED;
+			}
+			final File result = inFile;
+			sb.append("   Anonymized file: "+outFile+"\n");
+			if (check != null) {
+				if (checkFootprint > 0) admit(attempt, checkFootprint, sb);
+				runStage("frame checking", attempt, () -> {
+					checkFrames(result, sb);
+					return null;
+				});
+			}
+			writer.commit(result, outFile);
+			committed = true;
+			if (indexedUID != null) duplicateIndex.complete(indexedUID, sourceFile);
+			return AnonymizerResult.Status.ANONYMIZED;
+		}
+		finally {
+			if (dob != null) dob.close();
+			if (!committed && (indexedUID != null)) duplicateIndex.remove(indexedUID, sourceFile);
+			if (attempt != null) attempt.close();
+		}
+	}
+
+	//Reserve memory for a pixel stage, noting any wait in the log.
+	private void admit(Attempt attempt, long footprint, StringBuffer sb) throws InterruptedException {
+		long waitStart = System.currentTimeMillis();
+		long reserved = attempt.reserve(footprint);
+		long waitTime = System.currentTimeMillis() - waitStart;
+		if (verbose && (waitTime > 0)) {
+			sb.append(String.format("   Waited %d ms for %.1f MB of the memory budget.\n",
+							waitTime, ((double)reserved)/(1024.*1024.)));
+		}
+	}
+
+	//Get the number of frames decoded at once by the check option.
+	private int getFramesCheckedAtOnce(DicomObject dob) {
+		int numberOfFrames = Math.max(1, dob.getNumberOfFrames());
+		if (check.equals("all") && (frameParallelism > 1) && FrameChecker.isWorthSplitting(numberOfFrames)) {
+			return FrameChecker.getTaskCount(numberOfFrames, frameParallelism);
+		}
+		return 1;
+	}
+
+	//Load the frames selected by the check option to ensure that they can be decoded.
+	private void checkFrames(File file, StringBuffer sb) {
+		DicomObject dob = null;
+		try {
+			dob = new DicomObject(file);
+			if (dob.isImage()) {
+				int numberOfFrames = dob.getNumberOfFrames();
+				if (numberOfFrames == 0) numberOfFrames++;
+				boolean decoded = false;
+				if (check.equals("all")) {
+					if ((frameParallelism > 1) && FrameChecker.isWorthSplitting(numberOfFrames)) {
+						dob.close();
+						decoded = FrameChecker.checkAllFrames(file, numberOfFrames, frameParallelism);
+					}
+					else {
+						BufferedImage img = null;
+						for (int k=0; k<numberOfFrames; k++) {
+							img = dob.getBufferedImage(k, false);
+						}
+						decoded = (img != null);
+					}
+				}
+				else {
+					if (check.equals("") || check.equals("last")) {
+						decoded = (dob.getBufferedImage(numberOfFrames - 1, false) != null);
+					}
+					else if (check.equals("first")) {
+						decoded = (dob.getBufferedImage(0, false) != null);
+					}
+				}
+				if (verbose && decoded) {
+					sb.append("   Frame checking succeeded.\n");
+				}
+			}
+		}
+		catch (Exception ex) {
+			sb.append("   Frame checking failed.");
+		}
+		finally {
+			if (dob != null) dob.close();
+		}
+	}
+
+	//Run a stage, abandoning it if it exceeds the stage timeout. An abandoned
+	//stage keeps the attempt's scratch directory and memory reservation until
+	//its thread exits. If too many stages are already abandoned, the stage is
+	//interrupted and waited for instead, which bounds the number of threads.
+	private <T> T runStage(String name, final Attempt attempt, final Callable<T> stage) throws Exception {
+		if (stageTimeout <= 0) return stage.call();
+		attempt.stageStarted();
+		Future<T> future = getStageExecutor().submit(() -> {
+			try { return stage.call(); }
+			finally { attempt.stageEnded(); }
+		});
+		try { return future.get(stageTimeout, TimeUnit.MILLISECONDS); }
+		catch (TimeoutException ex) {
+			boolean abandoned = abandonedStages.tryAcquire() && attempt.abandon();
+			future.cancel(true);
+			if (!abandoned) {
+				logger.warn("Waiting for the "+name+" stage: "+maxAbandonedStages+" stages are already abandoned");
+				attempt.awaitStage();
+			}
+			throw new StageTimeoutException(name, stageTimeout);
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof Exception) throw (Exception)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw ex;
+		}
+	}
+
+	//Get the pool of daemon threads on which stages with a timeout are run.
+	//The pool holds at most one running stage per processing thread, plus
+	//the abandoned stages, of which there are at most maxAbandonedStages.
+	private static synchronized ExecutorService getStageExecutor() {
+		if (stageExecutor == null) {
+			stageExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "AnonymizerStage");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return stageExecutor;
+	}
+
+	//The resources of one attempt to process an object: the scratch directory
+	//in which the stages write their files and the memory reserved from the
+	//budget. They are released when the attempt is closed, unless a stage of
+	//the attempt was abandoned while still running, in which case the stage's
+	//thread releases them when the stage finally exits.
+	private class Attempt {
+		final OutputWriter writer;
+		final File dir;
+		int files = 0;
+		long reserved = 0;
+		boolean stageRunning = false;
+		boolean abandoned = false;
+		boolean released = false;
+
+		Attempt(OutputWriter writer, File dir) {
+			this.writer = writer;
+			this.dir = dir;
+		}
+
+		//Get a new file in the scratch directory for the output of a stage.
+		//The files are one level down because the CTP Transcoder creates its
+		//own temp directory in the parent of the directory of its output file;
+		//this keeps that directory in the scratch directory, which is deleted
+		//with the attempt.
+		File newFile(String stage) {
+			File stageDir = new File(dir, "stages");
+			stageDir.mkdirs();
+			return new File(stageDir, String.format("%d-%s.dcm", ++files, stage));
+		}
+
+		long reserve(long bytes) throws InterruptedException {
+			long n = memoryBudget.acquire(bytes);
+			synchronized (this) { reserved += n; }
+			return n;
+		}
+
+		synchronized void stageStarted() {
+			stageRunning = true;
+		}
+
+		synchronized void stageEnded() {
+			stageRunning = false;
+			notifyAll();
+			if (abandoned) {
+				release();
+				abandonedStages.release();
+				abandonedAttempts.remove(this);
+			}
+		}
+
+		//Hand the resources to the running stage; false if it has already ended.
+		synchronized boolean abandon() {
+			if (stageRunning) {
+				abandoned = true;
+				abandonedAttempts.add(this);
+			}
+			else abandonedStages.release();
+			return abandoned;
+		}
+
+		synchronized void awaitStage() {
+			while (stageRunning) {
+				try { wait(); }
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		synchronized void close() {
+			if (!abandoned) release();
+		}
+
+		synchronized void discard() {
+			release();
+		}
+
+		synchronized void unreserve() {
+			if (reserved > 0) memoryBudget.release(reserved);
+			reserved = 0;
+		}
+
+		private void release() {
+			if (released) return;
+			released = true;
+			writer.abort(dir);
+			unreserve();
+		}
+	}
+
+	//Check a stage that did not succeed. The CTP stages catch their own
+	//exceptions and return only the message in a QUARANTINE status, so an
+	//I/O error cannot be told from a problem with the object except by
+	//trying the I/O again. A status decided by the script is never an I/O
+	//error. If the probe fails, its IOException is thrown so the object is retried.
+	private void checkIO(String stage, AnonymizerStatus status, File in, File out) throws IOException {
+		String message = status.getMessage();
+		if (status.isSKIP() || ((message != null) && message.contains("!quarantine!"))) return;
+		try {
+			probeRead(in);
+			File probe = File.createTempFile(".probe-", ".tmp", out.getAbsoluteFile().getParentFile());
+			probe.delete();
+		}
+		catch (IOException ex) {
+			throw new IOException("The "+stage+" stage failed with an I/O error ("+message+")", ex);
+		}
+	}
+
+	//Read a file to the end, throwing an IOException if it cannot be read.
+	private void probeRead(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		byte[] buffer = bufferPool.acquire(copyBufferSize);
+		try {
+			while (in.read(buffer) != -1) ;
+		}
+		finally {
+			bufferPool.release(buffer);
+			in.close();
+		}
+	}
+
+	private static String getRetryNote(int attempts) {
+		return "   Retried "+attempts+" time"+((attempts > 1) ? "s" : "")+" after I/O errors.\n";
+	}
+
+	//Determine whether a failure was caused by an I/O error that may not recur.
+	private static boolean isTransient(Throwable t) {
+		for (Throwable c = t; c != null; c = c.getCause()) {
+			if (c instanceof IOException) return true;
+		}
+		return false;
+	}
+
+	private File createTempFile() throws IOException {
+		return File.createTempFile("DAT-", ".dcm", tempDir);
+	}
+
+	private void copy(InputStream in, File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		byte[] buffer = bufferPool.acquire(copyBufferSize);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		}
+		finally {
+			bufferPool.release(buffer);
+			out.close();
+		}
+	}
+
+	private void copy(File file, OutputStream out) throws IOException {
+		InputStream in = new FileInputStream(file);
+		byte[] buffer = bufferPool.acquire(copyBufferSize);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+		}
+		finally {
+			bufferPool.release(buffer);
+			in.close();
+		}
+		out.flush();
+	}
+
+	private static void delete(File file) {
+		if (file != null) file.delete();
+	}
+}
@@ -0,0 +1,109 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * The result of processing one object with an AnonymizerEngine.
+ */
+public class AnonymizerResult {
+
+	/**
+	 * The possible outcomes of processing one object.
+	 */
+	public enum Status {
+		/** The object was anonymized and the output was written. */
+		ANONYMIZED,
+		/** The input could not be parsed as a DICOM object. */
+		NOT_DICOM,
+		/** The object did not match the filter script. */
+		NOT_MATCHED,
+		/** The object was an exact duplicate of an object already processed. */
+		DUPLICATE,
+		/** The object was processed, but one of the stages failed. */
+		FAILED
+	}
+
+	final Status status;
+	final File inFile;
+	final File outFile;
+	final String log;
+	final long elapsedTime;
+	ByteBuffer output = null;
+
+	AnonymizerResult(Status status, File inFile, File outFile, String log, long elapsedTime) {
+		this.status = status;
+		this.inFile = inFile;
+		this.outFile = outFile;
+		this.log = log;
+		this.elapsedTime = elapsedTime;
+	}
+
+	/**
+	 * Get the outcome.
+	 * @return the status of the processing.
+	 */
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * Determine whether the object was anonymized.
+	 * @return true if the status is ANONYMIZED; false otherwise.
+	 */
+	public boolean isOK() {
+		return (status == Status.ANONYMIZED);
+	}
+
+	/**
+	 * Get the input file.
+	 * @return the input file, or null if the input was a stream or a buffer.
+	 */
+	public File getInputFile() {
+		return inFile;
+	}
+
+	/**
+	 * Get the output file.
+	 * @return the output file, or null if the output was a stream or a buffer.
+	 */
+	public File getOutputFile() {
+		return outFile;
+	}
+
+	/**
+	 * Get the anonymized object for results of the ByteBuffer API.
+	 * @return the anonymized object, or null if the object was not anonymized
+	 * or the output was not requested as a buffer.
+	 */
+	public ByteBuffer getOutput() {
+		return output;
+	}
+
+	/**
+	 * Get the processing log, one line per stage.
+	 * @return the text describing what was done to the object.
+	 */
+	public String getLog() {
+		return log;
+	}
+
+	/**
+	 * Get the time spent processing the object.
+	 * @return the processing time in milliseconds.
+	 */
+	public long getElapsedTime() {
+		return elapsedTime;
+	}
+
+	public String toString() {
+		return status + ": " + ((inFile != null) ? inFile : "(stream)");
+	}
+}
@@ -0,0 +1,131 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of reusable byte arrays for the buffers that the engine allocates
+ * itself: the frame, fragment and JPEG buffers of the FramePixelAnonymizer,
+ * the buffers of the duplicate digests, and the copy buffers of the stream
+ * API. (The CTP stages allocate their own buffers.) Buffers are kept in
+ * power-of-two size classes from 4KB to 4MB, each class holding a bounded
+ * number of free buffers, so steady-state processing reuses the same arrays
+ * instead of creating garbage for every frame or file. Requests larger than
+ * the largest class are not pooled.
+ */
+public class BufferPool {
+
+	/** The pool shared by all the engines in the JVM. */
+	public static final BufferPool shared = new BufferPool(64);
+
+	static final int minShift = 12;
+	static final int maxShift = 22;
+
+	final ConcurrentLinkedQueue<byte[]>[] classes;
+	final AtomicInteger[] counts;
+	final int maxPerClass;
+	final AtomicLong hits = new AtomicLong();
+	final AtomicLong misses = new AtomicLong();
+	final AtomicLong discards = new AtomicLong();
+
+	/**
+	 * Construct a pool.
+	 * @param maxPerClass the maximum number of free buffers kept in each size class.
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(int maxPerClass) {
+		this.maxPerClass = maxPerClass;
+		int n = maxShift - minShift + 1;
+		classes = (ConcurrentLinkedQueue<byte[]>[])new ConcurrentLinkedQueue<?>[n];
+		counts = new AtomicInteger[n];
+		for (int i=0; i<n; i++) {
+			classes[i] = new ConcurrentLinkedQueue<byte[]>();
+			counts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Get a buffer. The buffer may be larger than requested, and its
+	 * contents are undefined.
+	 * @param size the minimum size of the buffer.
+	 * @return the buffer, which should be returned to the pool by release().
+	 */
+	public byte[] acquire(int size) {
+		int index = getClassIndex(size);
+		if (index < 0) {
+			misses.incrementAndGet();
+			return new byte[size];
+		}
+		byte[] buffer = classes[index].poll();
+		if (buffer != null) {
+			counts[index].decrementAndGet();
+			hits.incrementAndGet();
+			return buffer;
+		}
+		misses.incrementAndGet();
+		return new byte[1 << (index + minShift)];
+	}
+
+	/**
+	 * Return a buffer to the pool. Buffers that were not obtained
+	 * from a pool are accepted if their size is one of the size classes.
+	 * @param buffer the buffer, or null.
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null) return;
+		int index = getClassIndex(buffer.length);
+		if ((index < 0) || (buffer.length != (1 << (index + minShift)))) {
+			discards.incrementAndGet();
+			return;
+		}
+		if (counts[index].incrementAndGet() > maxPerClass) {
+			counts[index].decrementAndGet();
+			discards.incrementAndGet();
+			return;
+		}
+		classes[index].offer(buffer);
+	}
+
+	/**
+	 * Get the number of buffers requested from the pool.
+	 * @return the number of requests.
+	 */
+	public long getRequestCount() {
+		return hits.get() + misses.get();
+	}
+
+	/**
+	 * Get the fraction of requests satisfied from the pool.
+	 * @return the hit rate in the range 0.0-1.0.
+	 */
+	public double getHitRate() {
+		long h = hits.get();
+		long total = h + misses.get();
+		return (total > 0) ? ((double)h) / total : 0.0;
+	}
+
+	/**
+	 * Get a one-line summary of the pool's statistics.
+	 * @return the statistics.
+	 */
+	public String getStatistics() {
+		return String.format("Buffer pool: %d hits, %d misses, %d discards, hit rate %.1f%%",
+							hits.get(), misses.get(), discards.get(), getHitRate() * 100);
+	}
+
+	//Get the index of the smallest size class that holds size bytes, or -1 if there is none.
+	private static int getClassIndex(int size) {
+		if (size > (1 << maxShift)) return -1;
+		int shift = minShift;
+		while ((1 << shift) < size) shift++;
+		return shift - minShift;
+	}
+}
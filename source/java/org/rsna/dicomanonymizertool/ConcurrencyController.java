@@ -0,0 +1,186 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * A thread that adjusts the size of a ThreadPoolExecutor at runtime.
+ * The controller samples the throughput (files/s and MB/s) and the
+ * process CPU utilization and hill-climbs on the
+ * byte throughput: it keeps moving the pool size in the direction that
+ * last improved throughput, reverses when throughput falls, and makes
+ * a multiplicative decrease when the CPU is saturated and adding threads
+ * has stopped paying off. A sample is taken at the end of the first
+ * interval in which enough files have completed since the last decision,
+ * at least minCompletions and at least two per thread, so that slow files,
+ * which leave intervals with no completions, do not look like a collapse
+ * in throughput. The pool size is always kept within the specified
+ * bounds, and every decision is logged.
+ */
+public class ConcurrencyController extends Thread {
+
+	static final Logger logger = Logger.getLogger(ConcurrencyController.class);
+
+	static final long defaultInterval = 2000;
+	static final double threshold = 0.05;
+	static final double saturatedCPU = 0.95;
+	static final int minCompletions = 4;
+
+	final ThreadPoolExecutor execSvc;
+	final int minThreads;
+	final int maxThreads;
+	final long interval;
+	final AtomicLong files = new AtomicLong();
+	final AtomicLong bytes = new AtomicLong();
+
+	int direction = 1;
+	double lastThroughput = -1;
+
+	/**
+	 * Construct a controller for a thread pool, using the default sampling interval.
+	 * @param execSvc the pool to control.
+	 * @param minThreads the smallest allowed pool size.
+	 * @param maxThreads the largest allowed pool size.
+	 */
+	public ConcurrencyController(ThreadPoolExecutor execSvc, int minThreads, int maxThreads) {
+		this(execSvc, minThreads, maxThreads, defaultInterval);
+	}
+
+	/**
+	 * Construct a controller for a thread pool.
+	 * @param execSvc the pool to control.
+	 * @param minThreads the smallest allowed pool size.
+	 * @param maxThreads the largest allowed pool size.
+	 * @param interval the sampling interval in milliseconds.
+	 */
+	public ConcurrencyController(ThreadPoolExecutor execSvc, int minThreads, int maxThreads, long interval) {
+		super("ConcurrencyController");
+		setDaemon(true);
+		this.execSvc = execSvc;
+		this.minThreads = Math.max(1, minThreads);
+		this.maxThreads = Math.max(this.minThreads, maxThreads);
+		this.interval = interval;
+		int size = clamp(execSvc.getCorePoolSize());
+		if (execSvc.getMaximumPoolSize() < this.maxThreads) execSvc.setMaximumPoolSize(this.maxThreads);
+		execSvc.setCorePoolSize(size);
+		execSvc.setMaximumPoolSize(this.maxThreads);
+	}
+
+	/**
+	 * Record the completion of one file that went through the pipeline.
+	 * Files that were skipped without being processed are not to be
+	 * recorded, because their instant completions would inflate the throughput.
+	 * @param length the size of the file in bytes.
+	 */
+	public void completed(long length) {
+		files.incrementAndGet();
+		bytes.addAndGet(length);
+	}
+
+	public void run() {
+		long lastTime = System.nanoTime();
+		long lastFiles = 0;
+		long lastBytes = 0;
+		while (!isInterrupted()) {
+			try { Thread.sleep(interval); }
+			catch (InterruptedException ex) { return; }
+
+			long now = System.nanoTime();
+			long nFiles = files.get();
+			long nBytes = bytes.get();
+			int size = execSvc.getCorePoolSize();
+
+			//Extend the sample until enough files have completed at this size.
+			int needed = Math.max(minCompletions, 2 * size);
+			if (nFiles - lastFiles < needed) {
+				logger.debug("Concurrency: holding at "+size+" threads, "
+								+(nFiles - lastFiles)+" of "+needed+" completions in the sample");
+				continue;
+			}
+			double seconds = ((double)(now - lastTime)) / 1.0e9;
+			double filesPerSecond = (nFiles - lastFiles) / seconds;
+			double mbPerSecond = (nBytes - lastBytes) / seconds / (1024.0 * 1024.0);
+			lastTime = now;
+			lastFiles = nFiles;
+			lastBytes = nBytes;
+
+			double cpu = getProcessCpuLoad();
+			String sample = String.format("%.1f files/s, %.2f MB/s, CPU %s",
+								filesPerSecond, mbPerSecond,
+								(cpu < 0) ? "n/a" : String.format("%.0f%%", cpu * 100));
+
+			//Don't adjust the pool if there is no backlog to run on it.
+			if (execSvc.getQueue().isEmpty()) {
+				logger.debug("Concurrency: holding at "+size+" threads, queue empty ("+sample+")");
+				continue;
+			}
+
+			double throughput = (nBytes > 0) ? mbPerSecond : filesPerSecond;
+			int newSize = size;
+			String reason;
+			if (lastThroughput < 0) {
+				newSize = size + direction;
+				reason = "initial probe";
+			}
+			else if ((cpu >= saturatedCPU) && (throughput <= lastThroughput * (1.0 + threshold))) {
+				newSize = size - Math.max(1, size / 4);
+				direction = -1;
+				reason = "CPU saturated";
+			}
+			else if (throughput > lastThroughput * (1.0 + threshold)) {
+				newSize = size + direction;
+				reason = "throughput improved";
+			}
+			else if (throughput < lastThroughput * (1.0 - threshold)) {
+				direction = -direction;
+				newSize = size + direction;
+				reason = "throughput fell";
+			}
+			else if ((cpu >= 0) && (cpu < saturatedCPU)) {
+				direction = 1;
+				newSize = size + 1;
+				reason = "plateau, probing up";
+			}
+			else reason = "plateau";
+
+			newSize = clamp(newSize);
+			if (newSize == size) {
+				//At a bound: turn around so the next probe can move.
+				if ((size == maxThreads) || (size == minThreads)) direction = -direction;
+				logger.info("Concurrency: holding at "+size+" threads, "+reason+" ("+sample+")");
+			}
+			else {
+				setPoolSize(newSize);
+				logger.info("Concurrency: "+size+" -> "+newSize+" threads, "+reason+" ("+sample+")");
+			}
+			lastThroughput = throughput;
+		}
+	}
+
+	private void setPoolSize(int size) {
+		execSvc.setCorePoolSize(size);
+	}
+
+	private int clamp(int size) {
+		return Math.max(minThreads, Math.min(maxThreads, size));
+	}
+
+	//Get the CPU load of this process in the range 0.0-1.0, or -1 if it is not available.
+	private static double getProcessCpuLoad() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuLoad();
+		}
+		return -1;
+	}
+}
@@ -7,7 +7,6 @@
 
 package org.rsna.dicomanonymizertool;
 
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.util.*;
 import java.util.jar.*;
@@ -33,9 +32,6 @@ public class DicomAnonymizerTool {
 	
 	static Logger logger = null;
 
-	static final String JPEGBaseline = "1.2.840.10008.1.2.4.50";
-	static final String JPEGLossLess = "1.2.840.10008.1.2.4.70";
-
 	/**
 	 * The main method to start the program.
 	 * @param args the list of arguments from the command line.
@@ -87,6 +83,8 @@ public class DicomAnonymizerTool {
 			System.out.println("  -dpa {pixelscriptfile} specifies the pixel anonymizer script file.");
 			System.out.println("       If -dpa is missing, pixel anonymization is not performed.");
 			System.out.println("       If {pixelscriptfile} is missing, the default pixel script is used.");
+			System.out.println("       The frames of multi-frame grayscale images that are uncompressed or JPEG lossless");
+			System.out.println("       are blanked in parallel, as are their decompression (-dec) and recompression (-rec).");
 			System.out.println("  -dec specifies that the image is to be decompressed if the pixel anonymizer requires it.");
 			System.out.println("  -rec specifies that the image is to be recompressed after pixel anonymization if it was decompressed.");
 			System.out.println("  -test specifies that the pixel anonymizer is to blank regions in mid-gray.");
@@ -97,7 +95,41 @@ public class DicomAnonymizerTool {
 			System.out.println("       If {frame} is specified as last, only the last frame is checked.");
 			System.out.println("       If {frame} is specified as all, all frames are checked.");
  			System.out.println("  -n {threads} specifies the number of parallel threads used for processing.");
+			System.out.println("       If {threads} is auto, the number of threads is adjusted during the run to maximize throughput.");
+			System.out.println("       If {threads} is auto:{min}-{max}, the adjustment is limited to the range {min} to {max}.");
+			System.out.println("  -sort specifies that the files are to be pre-scanned and processed largest first.");
+			System.out.println("       The makespans predicted before dispatch for the sorted and unsorted orders,");
+			System.out.println("       in units of estimated cost, are reported at the end of the run, with the");
+			System.out.println("       predicted and actual tails: the time after the first thread runs out of work.");
+			System.out.println("  -retry {n} specifies the number of times a file is retried after an I/O error (default 2).");
+			System.out.println("       Each retry waits twice as long as the one before it, starting at 0.5 second.");
+			System.out.println("  -timeout {seconds} specifies the time limit for each processing stage of a file.");
+			System.out.println("       A file whose stage exceeds the limit fails; the run continues.");
+			System.out.println("       If -timeout is missing, stages are not limited.");
+			System.out.println("  -quarantine {dir} specifies a directory for copies of the files that fail.");
+			System.out.println("       The failures are listed in {dir}/quarantine.txt.");
+			System.out.println("  -fsync {mode} specifies how anonymized files are forced to disk.");
+			System.out.println("       The processing stages write to scratch files next to the output file,");
+			System.out.println("       and the result is moved into place only when the file is completely processed.");
+			System.out.println("       Scratch files left by an interrupted run are deleted when the next run starts;");
+			System.out.println("       two runs must not write to the same output directory at the same time.");
+			System.out.println("       If {mode} is none or -fsync is missing, nothing is forced to disk.");
+			System.out.println("       If {mode} is file, each file is forced to disk, moved, and its directory forced.");
+			System.out.println("       If {mode} is dir, the files that complete together are forced to disk,");
+			System.out.println("       moved into place as a group, and their directory is forced once for the group.");
+			System.out.println("  -dedup {indexfile} specifies that exact duplicates of SOP instances are to be skipped.");
+			System.out.println("       Instances are duplicates if they have the same SOPInstanceUID and identical content.");
+			System.out.println("       A duplicate is skipped only after the first copy has been anonymized successfully;");
+			System.out.println("       if the first copy fails, the duplicate is processed in its place.");
+			System.out.println("       Files are hashed only when their SOPInstanceUID is seen again, unless {indexfile} is present.");
+			System.out.println("       Instances with the same SOPInstanceUID and different content are processed and reported.");
+			System.out.println("       If {indexfile} is present, the index is loaded from it and saved to it at the end of the run.");
+			System.out.println("  -mem {size} specifies the memory budget for objects in the pixel stages, e.g. 8g or 512m.");
+			System.out.println("       Objects are admitted when the estimated size of the pixels they decode fits in the budget.");
+			System.out.println("       An object larger than the budget is processed alone.");
+			System.out.println("       If -mem is missing, objects are admitted by thread count alone.");
  			System.out.println("  -v specifies verbose output");
+			System.out.println("A summary is printed at the end of the run. The exit code is 1 if any file failed.");
  			System.out.println("");
 			checkConfig();
 			System.exit(0);
@@ -143,15 +175,7 @@ public class DicomAnonymizerTool {
 		path = argsTable.get("-out");
 		File outFile = inFile;
 		if (path == null) {
-			File f = new File(inFile.getAbsolutePath());
-			String name = f.getName();
-			if (name.toLowerCase().endsWith(".dcm")) {
-				name = name.substring(0, name.length()-4) 
-						+ "-an" 
-						+ name.substring(name.length()-4);
-			}
-			else name += "-an";
-			outFile = new File(f.getParentFile(), name);
+			outFile = AnonymizerEngine.getDefaultOutputFile(inFile);
 		}
 		else if (!path.equals("")) {
 			outFile = new File(path);
@@ -220,9 +244,72 @@ public class DicomAnonymizerTool {
 		
 		boolean testmode = (argsTable.containsKey("-test"));
 		int maxThreads = 1;
-		try { maxThreads = Integer.parseInt(argsTable.get("-n")); }
-		catch (Exception ex) { }
+		String threads = argsTable.get("-n");
+		boolean adaptive = (threads != null) && threads.startsWith("auto");
+		int minAutoThreads = 1;
+		int maxAutoThreads = 4 * Runtime.getRuntime().availableProcessors();
+		if (adaptive) {
+			String spec = threads.substring(4);
+			if (!spec.equals("")) {
+				String[] bounds = spec.startsWith(":") ? spec.substring(1).split("-", -1) : new String[0];
+				try {
+					if (bounds.length != 2) throw new Exception();
+					minAutoThreads = Integer.parseInt(bounds[0].trim());
+					maxAutoThreads = Integer.parseInt(bounds[1].trim());
+					if ((minAutoThreads < 1) || (maxAutoThreads < minAutoThreads)) throw new Exception();
+				}
+				catch (Exception ex) {
+					System.out.println("Thread specification ("+threads+") is not auto or auto:{min}-{max}.");
+					System.exit(1);
+				}
+			}
+			maxThreads = Runtime.getRuntime().availableProcessors();
+		}
+		else {
+			try { maxThreads = Integer.parseInt(threads); }
+			catch (Exception ex) { }
+		}
 		if (maxThreads < 1) maxThreads = 1;
+		MemoryBudget memoryBudget = null;
+		String mem = argsTable.get("-mem");
+		if ((mem != null) && !mem.equals("")) {
+			try { memoryBudget = new MemoryBudget(MemoryBudget.parseSize(mem)); }
+			catch (Exception ex) {
+				System.out.println("Memory budget ("+mem+") cannot be parsed.");
+				System.exit(1);
+			}
+		}
+		boolean sort = argsTable.containsKey("-sort");
+		int retries = 2;
+		try { retries = Integer.parseInt(argsTable.get("-retry")); }
+		catch (Exception ex) { }
+		long timeout = 0;
+		try { timeout = (long)(Double.parseDouble(argsTable.get("-timeout")) * 1000); }
+		catch (Exception ex) { }
+		String quarantinePath = argsTable.get("-quarantine");
+		DuplicateIndex duplicateIndex = null;
+		File dedupFile = null;
+		if (argsTable.containsKey("-dedup")) {
+			duplicateIndex = new DuplicateIndex();
+			String dedupPath = argsTable.get("-dedup");
+			if (!dedupPath.equals("")) {
+				dedupFile = new File(dedupPath);
+				try { duplicateIndex.load(dedupFile); }
+				catch (Exception ex) {
+					System.out.println("Duplicate index ("+dedupPath+") cannot be read.");
+					System.exit(1);
+				}
+			}
+		}
+		OutputWriter.Sync sync = OutputWriter.Sync.NONE;
+		String fsync = argsTable.get("-fsync");
+		if ((fsync != null) && !fsync.equals("")) {
+			try { sync = OutputWriter.parseSync(fsync); }
+			catch (Exception ex) {
+				System.out.println("Sync mode ("+fsync+") is not none, file, or dir.");
+				System.exit(1);
+			}
+		}
 		boolean verbose = (argsTable.get("-v") != null);
 		boolean setBIRElement = true;
 		
@@ -234,6 +321,21 @@ public class DicomAnonymizerTool {
 				check, 
 				maxThreads, 
 				verbose);
+		anonymizer.engine.setMemoryBudget(memoryBudget);
+		anonymizer.engine.setOutputWriter(new OutputWriter(sync, 64));
+		anonymizer.engine.setRetryPolicy(retries, 500);
+		if (duplicateIndex != null) anonymizer.setDuplicateIndex(duplicateIndex, dedupFile);
+		anonymizer.engine.setStageTimeout(timeout);
+		if ((quarantinePath != null) && !quarantinePath.equals("")) {
+			anonymizer.setQuarantine(new File(quarantinePath));
+		}
+		if (sort) anonymizer.setPreScan();
+		if (adaptive) anonymizer.setAdaptiveConcurrency(minAutoThreads, maxAutoThreads);
+
+		//Delete the scratch directories of earlier runs that did not finish;
+		//they hold intermediate objects that may not yet be anonymized.
+		int swept = OutputWriter.sweep(outFile);
+		if (swept > 0) System.out.println("Deleted "+swept+" scratch directories left by an earlier run.");
 		anonymizer.go(inFile, outFile);
 	}
 	
@@ -246,13 +348,26 @@ public class DicomAnonymizerTool {
 	public boolean setBIRElement;
 	public boolean testmode;
 	public String check;
-	public String filterScript = null;
 	public int maxThreads;
 	public boolean verbose = false;
+	public final AnonymizerEngine engine;
 	final ThreadPoolExecutor execSvc;
 	final LinkedBlockingQueue<Runnable> queue;
+	ConcurrencyController controller = null;
+	PreScanner prescanner = null;
+	Quarantine quarantine = null;
+	DuplicateIndex duplicateIndex = null;
+	File duplicateIndexFile = null;
+	long anonymizedTime = 0;
 	long startTime = 0;
+	long dispatchTime = 0;
+	long firstIdleTime = 0;
 	boolean allQueued = false;
+	int queued = 0;
+	int completed = 0;
+	final EnumMap<AnonymizerResult.Status,Integer> counts =
+		new EnumMap<AnonymizerResult.Status,Integer>(AnonymizerResult.Status.class);
+	final List<AnonymizerResult> failures = new ArrayList<AnonymizerResult>();
 
 	public DicomAnonymizerTool(
 			File filterScriptFile, 
@@ -279,9 +394,20 @@ public class DicomAnonymizerTool {
 		this.maxThreads = maxThreads;
 		this.verbose = verbose;
 		
-		//If there is a config.xml file, load the CTP configuration
+		engine = new AnonymizerEngine(
+				filterScriptFile,
+				daScriptFile, lookupTableFile,
+				dpaScriptFile, decompress, recompress, setBIRElement, testmode,
+				check,
+				verbose);
+
+		//If there is a config.xml file and the script calls any plugins,
+		//load the CTP configuration and start the plugins that are called.
+		//Scripts that call no plugins skip the configuration entirely, which
+		//matters for the startup time of short runs.
+		Set<String> pluginIDs = engine.getReferencedPlugins();
 		File configFile = new File("config.xml");
-		if (configFile.exists()) {
+		if (configFile.exists() && !pluginIDs.isEmpty()) {
 			//Note: the next line is commented out to make the program work in Java9
 			//and later as well as Java7 and 8. This requires all jars to be on the 
 			//DAT.jar manifest's class path, which includes several dummy jar names
@@ -289,10 +415,10 @@ public class DicomAnonymizerTool {
 			//for AnonymizerExtensions without having to rebuild DAT.
 			//ClasspathUtil.addJARs( new File( System.getProperty("user.dir") ) );
 			
-			//Load the configuration to register any plugins.
+			//Load the configuration to register the plugins.
 			Configuration config = Configuration.load();
 			for (Plugin plugin : config.getPlugins()) {
-				plugin.start();
+				if (pluginIDs.contains(plugin.getID())) plugin.start();
 			}
 		}		
 
@@ -300,15 +426,70 @@ public class DicomAnonymizerTool {
 		execSvc = new ThreadPoolExecutor( maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS, queue );
 	}
 	
+	/**
+	 * Let the number of processing threads float between bounds, under the
+	 * control of a ConcurrencyController. This must be called before go().
+	 * @param minThreads the smallest allowed number of threads.
+	 * @param maxThreads the largest allowed number of threads.
+	 */
+	public void setAdaptiveConcurrency(int minThreads, int maxThreads) {
+		controller = new ConcurrencyController(execSvc, minThreads, maxThreads);
+	}
+	
+	/**
+	 * Pre-scan the files and queue them largest first. This must be called before go().
+	 */
+	public void setPreScan() {
+		prescanner = new PreScanner((dpaScriptFile != null) || (check != null));
+	}
+	
+	/**
+	 * Copy the inputs that fail into a quarantine directory. This must be called before go().
+	 * @param dir the quarantine directory.
+	 */
+	public void setQuarantine(File dir) {
+		quarantine = new Quarantine(dir);
+	}
+	
+	/**
+	 * Skip exact duplicates of SOP instances. This must be called before go().
+	 * @param duplicateIndex the index of the instances already seen.
+	 * @param file the file in which to save the index at the end of the run, or null.
+	 */
+	public void setDuplicateIndex(DuplicateIndex duplicateIndex, File file) {
+		this.duplicateIndex = duplicateIndex;
+		this.duplicateIndexFile = file;
+		duplicateIndex.setEagerDigests(file != null);
+		engine.setDuplicateIndex(duplicateIndex);
+	}
+	
 	public void go(File inFile, File outFile) {
 		startTime = System.currentTimeMillis();
+		if (controller != null) controller.start();
 		anonymize(inFile, outFile);
-		allQueued = true;
+		if (prescanner != null) {
+			//Under -n auto, the prediction is for the threads at the start of the run.
+			List<PreScanner.WorkItem> items = prescanner.scan(execSvc.getCorePoolSize());
+			dispatchTime = System.currentTimeMillis();
+			for (PreScanner.WorkItem item : items) {
+				submit( new Processor(item.inFile, item.outFile, this) );
+			}
+		}
+		synchronized (this) {
+			//With fewer files than threads, some threads never get work.
+			if ((prescanner != null) && (firstIdleTime == 0)
+					&& ((queued < execSvc.getCorePoolSize()) || ((completed > 0) && queue.isEmpty()))) {
+				firstIdleTime = (queued < execSvc.getCorePoolSize()) ? dispatchTime : System.currentTimeMillis();
+			}
+			allQueued = true;
+			checkDone();
+		}
 	}
 	
 	public void anonymize(File inFile, File outFile) { 
 		if (inFile.isFile()) {
-			execSvc.execute( new Processor(inFile, outFile, this) );
+			if (prescanner != null) prescanner.add(inFile, outFile);
+			else submit( new Processor(inFile, outFile, this) );
 		}
 		else {
 			File[] files = inFile.listFiles();
@@ -325,13 +506,71 @@ public class DicomAnonymizerTool {
 		}
 	}
 	
-	public synchronized void notify(String s) {
+	private synchronized void submit(Processor processor) {
+		queued++;
+		execSvc.execute(processor);
+	}
+	
+	/**
+	 * Report the completion of one file and, if it was the last one,
+	 * print the summary of the run and exit. The exit code is 1 if
+	 * any file failed; otherwise, it is 0.
+	 * @param s the text to print for the file.
+	 * @param result the result of processing the file.
+	 */
+	public synchronized void notify(String s, AnonymizerResult result) {
 		System.out.print(s);
-		if (allQueued && (execSvc.getActiveCount() <= 1) && (queue.size() == 0)) {
+		completed++;
+		Integer n = counts.get(result.getStatus());
+		counts.put(result.getStatus(), (n == null) ? 1 : n + 1);
+		if (result.getStatus() == AnonymizerResult.Status.FAILED) failures.add(result);
+		if (result.isOK()) anonymizedTime += result.getElapsedTime();
+		//A thread that finishes a file when nothing is left in the queue
+		//has run out of work; the first one marks the start of the tail.
+		if (allQueued && (firstIdleTime == 0) && queue.isEmpty()) firstIdleTime = System.currentTimeMillis();
+		checkDone();
+	}
+	
+	private void checkDone() {
+		if (allQueued && (completed == queued)) {
 			long endTime = System.currentTimeMillis();
 			double elapsedTime = ((double)(endTime - startTime))/1000.;
 			System.out.println(String.format("----\nElapsed time: %.3f",elapsedTime));
-			System.exit(0);
+			if (prescanner != null) {
+				double makespan = ((double)(endTime - dispatchTime))/1000.;
+				double firstIdle = (firstIdleTime > 0) ? ((double)(firstIdleTime - dispatchTime))/1000. : -1.;
+				System.out.println(prescanner.getReport(firstIdle, makespan));
+			}
+			//The pool only serves the engine's own buffers; without them there is nothing to report.
+			BufferPool pool = engine.getBufferPool();
+			if (verbose && (pool.getRequestCount() > 0)) System.out.println(pool.getStatistics());
+			System.out.println("Summary:");
+			for (AnonymizerResult.Status status : AnonymizerResult.Status.values()) {
+				Integer n = counts.get(status);
+				System.out.println(String.format("    %-12s %d", status, (n == null) ? 0 : n));
+			}
+			if (duplicateIndex != null) {
+				Integer n = counts.get(AnonymizerResult.Status.ANONYMIZED);
+				double meanTime = (n == null) ? 0 : ((double)anonymizedTime) / n;
+				System.out.println(duplicateIndex.getReport(meanTime));
+				if (duplicateIndexFile != null) {
+					try { duplicateIndex.save(duplicateIndexFile); }
+					catch (Exception ex) {
+						System.out.println("Unable to save the duplicate index ("+duplicateIndexFile+")");
+					}
+				}
+			}
+			if (!failures.isEmpty()) {
+				System.out.println("Failed files:");
+				for (AnonymizerResult result : failures) {
+					System.out.println("    " + result.getInputFile() + ": " + Quarantine.getReason(result));
+				}
+				if (quarantine != null) {
+					System.out.println("Quarantined files: " + quarantine.getCount() + " in " + quarantine.dir);
+				}
+			}
+			engine.discardAbandonedStages();
+			System.exit(failures.isEmpty() ? 0 : 1);
 		}
 	}
 	
@@ -346,150 +585,41 @@ public class DicomAnonymizerTool {
 			this.outFile = outFile;
 			this.parent = parent;
 		}
-	
+		
 		public void run() {
+			long length = inFile.length();
+			AnonymizerResult result = null;
 			StringBuffer sb = new StringBuffer();
-			DicomObject dob = null;
-			boolean isImage = false;
 			try {
-				dob = new DicomObject(inFile);
-				isImage = dob.isImage();
-			}
-			catch (Exception ex) {
-				if (verbose) {
+				//A copy of a duplicate that is still being processed is requeued when it is done.
+				result = engine.anonymizeOrDefer(inFile, outFile, () -> execSvc.execute(this));
+				if (result == null) return;
+				//Only files that went through the pipeline measure its throughput.
+				AnonymizerResult.Status status = result.getStatus();
+				boolean processed = (status == AnonymizerResult.Status.ANONYMIZED)
+									|| (status == AnonymizerResult.Status.FAILED);
+				if ((controller != null) && processed) controller.completed(length);
+				if ((quarantine != null) && (result.getStatus() == AnonymizerResult.Status.FAILED)) {
+					quarantine.add(result);
+				}
+				boolean skipped = (status == AnonymizerResult.Status.NOT_DICOM)
+									|| (status == AnonymizerResult.Status.NOT_MATCHED)
+									|| (status == AnonymizerResult.Status.DUPLICATE);
+				if (verbose || !skipped) {
 					sb.append("----\nThread: "+Thread.currentThread().getName()+": ");
-					sb.append("Skipping non-DICOM file: "+inFile+"\n");
+					sb.append(result.getLog());
 				}
-				parent.notify(sb.toString());
-				return;
 			}
-			
-			if (filterScriptFile != null) {
-				if (filterScript == null) {
-					filterScript = FileUtil.getText(filterScriptFile);
-				}
-				if (!dob.matches(filterScript)) {
-					if (verbose) {
-						sb.append("----\nThread: "+Thread.currentThread().getName()+": ");
-						sb.append("Skipping non-matching DICOM file: "+inFile+"\n");
-					}
-					parent.notify(sb.toString());
-					return;
-				}
-			}					
-
-			sb.append("----\nThread: "+Thread.currentThread().getName()+": ");
-			try {
-				sb.append("Anonymizing "+inFile+"\n");
-				boolean ok = false;
-
-				//Run the DICOMPixelAnonymizer first before the elements used
-				//in signature matching are modified by the DicomAnonymizer.
-				if (dpaScriptFile != null) {
-					if (isImage) {
-						File file = outFile;
-						PixelScript pixelScript = new PixelScript(dpaScriptFile);
-						if (pixelScript != null) {
-							Signature signature = pixelScript.getMatchingSignature(dob);
-							if (signature != null) {
-								Regions regions = signature.regions;
-								if ((regions != null) && (regions.size() > 0)) {
-									boolean decompressed = false;
-									if (decompress && 
-											dob.isEncapsulated() && 
-												!dob.getTransferSyntaxUID().equals(JPEGBaseline)) {
-										if (DICOMDecompressor.decompress(inFile, outFile).isOK()) {
-											dob = new DicomObject(outFile);
-											decompressed = true;
-										}
-										else {
-											outFile.delete();
-											sb.append("Decompression failure.\n");
-										}
-									}
-									
-									AnonymizerStatus status = 
-										DICOMPixelAnonymizer.anonymize(dob.getFile(), outFile, regions, setBIRElement, testmode);
-									if (verbose || !status.isOK()) sb.append("   The DICOMPixelAnonymizer returned "+status.getStatus()+".\n");
-									
-									if (status.isOK()) {
-										if (decompressed && recompress) {
-											Transcoder transcoder = new Transcoder();
-											transcoder.setTransferSyntax(JPEGLossLess);
-											transcoder.transcode(outFile, outFile);
-										}
-										inFile = outFile;
-										ok = true;
-									}
-									else {
-										sb.append("   Aborting the processing of this file.\n");
-										parent.notify(sb.toString());
-										return;
-									}
-								}
-							}
-							else if (verbose) sb.append("   No matching signature found for pixel anonymization.\n");
-						}
-					}
-					else if (verbose) sb.append("   Pixel anonymization skipped - not an image.\n");
-				}
-
-				//Now run the DICOMAnonymizer
-				if (daScriptFile != null) {
-					DAScript daScript = DAScript.getInstance(daScriptFile);
-					Properties daScriptProps = daScript.toProperties();
-					Properties lutProps = LookupTable.getProperties(lookupTableFile);
-					IntegerTable intTable = null;
-					AnonymizerStatus status =
-								DICOMAnonymizer.anonymize(inFile, outFile, daScriptProps, lutProps, intTable, false, false);
-					if (verbose || !status.isOK()) sb.append("   The DICOMAnonymizer returned "+status.getStatus()+".\n");
-					if (status.isOK()) {
-						ok = true;
-					}
-					else {
-						sb.append("   Aborting the processing of this file\n");
-						parent.notify(sb.toString());
-					}
-				}
-				if (ok) {
-					sb.append("   Anonymized file: "+outFile+"\n");
-					if (check != null) {
-						try {
-							dob = new DicomObject(outFile);
-							if (dob.isImage()) {
-								int numberOfFrames = dob.getNumberOfFrames();
-								if (numberOfFrames == 0) numberOfFrames++;
-								BufferedImage img = null;
-								if (check.equals("all")) {
-									for (int k=0; k<numberOfFrames; k++) {
-										img = dob.getBufferedImage(k, false);
-									}
-								}
-								else {
-									if (check.equals("") || check.equals("last")) {
-										img = dob.getBufferedImage(numberOfFrames - 1, false);
-									}
-									else if (check.equals("first")) {
-										img = dob.getBufferedImage(0, false);
-									}
-								}
-								if (verbose && (img != null)) {
-									sb.append("   Frame checking succeeded.\n");
-								}
-							}
-						}
-						catch (Exception ex) { 
-							sb.append("   Frame checking failed.");
-						}
-					}
-				}
-				else sb.append("   Anonymization failed.\n");
+			catch (Throwable t) {
+				//Never let one file take down the run.
+				String log = "Processing "+inFile+"\n   Exception: "+t+"\n";
+				result = new AnonymizerResult(AnonymizerResult.Status.FAILED, inFile, outFile, log, 0);
+				sb.append("----\nThread: "+Thread.currentThread().getName()+": "+log);
 			}
-			catch (Exception ex) {
-				ex.printStackTrace();
-				System.exit(0);
+			finally {
+				//A deferred file is reported when it is processed.
+				if (result != null) parent.notify(sb.toString(), result);
 			}
-			parent.notify(sb.toString());
 		}
 	}
 
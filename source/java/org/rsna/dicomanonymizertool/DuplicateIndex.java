@@ -0,0 +1,322 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * An index of the SOP instances seen in a run, keyed by SOPInstanceUID,
+ * with the input and output paths of each instance and the SHA-256 digest
+ * of its input. An instance whose UID is already in the index with the
+ * same digest is an exact duplicate and can be skipped before the
+ * expensive stages; an instance whose UID is in the index with a different
+ * digest is a conflict, which is processed but reported. The index can be
+ * loaded from and saved to a file so that duplicates are also detected
+ * across runs.
+ * <p>
+ * Digests are computed only when a UID is seen again, from the input of
+ * the first instance, unless they are eager. They must be eager when the
+ * index is saved, because the inputs may be gone by the next run, and
+ * when an output replaces its input, because the input is then overwritten.
+ * <p>
+ * An instance added by check() is pending until it is completed, when its
+ * output has been committed, or removed, when it could not be processed.
+ * A copy of a pending instance is deferred: it is checked again when the
+ * instance is done, and it is a duplicate if the instance was completed,
+ * or takes the instance's place if it was removed, so a failure never
+ * causes its copies to be skipped.
+ */
+public class DuplicateIndex {
+
+	static final Logger logger = Logger.getLogger(DuplicateIndex.class);
+
+	static final int bufferSize = 256 * 1024;
+
+	/**
+	 * The outcomes of checking an instance against the index.
+	 */
+	public enum Check {
+		/** The UID was not in the index; the instance has been added as pending. */
+		NEW,
+		/** The UID and the digest were already in the index, and that instance was completed. */
+		DUPLICATE,
+		/** The UID was in the index with a different digest. */
+		CONFLICT,
+		/** The UID is pending; the instance is to be checked again when it is done. */
+		DEFERRED
+	}
+
+	/**
+	 * An instance in the index.
+	 */
+	public static class Entry {
+		/** The path of the instance's input. */
+		public final String path;
+		/** The path of the anonymized instance. */
+		public final String output;
+		volatile String digest;
+		boolean pending;
+		List<Runnable> waiters = null;
+
+		Entry(String path, String output, String digest, boolean pending) {
+			this.path = path;
+			this.output = output;
+			this.digest = digest;
+			this.pending = pending;
+		}
+
+		synchronized boolean isPending() {
+			return pending;
+		}
+
+		//End the pending state, returning the tasks waiting for it.
+		synchronized List<Runnable> done() {
+			pending = false;
+			List<Runnable> tasks = waiters;
+			waiters = null;
+			notifyAll();
+			return tasks;
+		}
+	}
+
+	final ConcurrentHashMap<String,Entry> index = new ConcurrentHashMap<String,Entry>();
+	final AtomicLong duplicates = new AtomicLong();
+	final AtomicLong bytesSaved = new AtomicLong();
+	final AtomicLong conflicts = new AtomicLong();
+	final AtomicLong bytesHashed = new AtomicLong();
+	final AtomicLong hashTime = new AtomicLong();
+	boolean eager = false;
+	BufferPool bufferPool = BufferPool.shared;
+
+	/**
+	 * Compute the digest of every new instance when it is added, instead
+	 * of only when its UID is seen again. This is required if the index is
+	 * to be saved.
+	 * @param eager true to compute the digests when the instances are added.
+	 */
+	public void setEagerDigests(boolean eager) {
+		this.eager = eager;
+	}
+
+	/**
+	 * Set the pool from which the read buffers for the digests are obtained.
+	 * @param bufferPool the pool.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Compute the digest of a file.
+	 * @param file the file.
+	 * @param pool the pool from which to obtain the read buffer.
+	 * @return the SHA-256 digest as a hex string.
+	 * @throws Exception if the file cannot be read.
+	 */
+	public static String getDigest(File file, BufferPool pool) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("SHA-256");
+		byte[] buffer = pool.acquire(bufferSize);
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) md.update(buffer, 0, n);
+		}
+		finally {
+			in.close();
+			pool.release(buffer);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) sb.append(String.format("%02x", b & 0xff));
+		return sb.toString();
+	}
+
+	//Compute a digest, accounting for the cost.
+	private String digest(File file) throws Exception {
+		long start = System.nanoTime();
+		String digest = getDigest(file, bufferPool);
+		hashTime.addAndGet(System.nanoTime() - start);
+		bytesHashed.addAndGet(file.length());
+		return digest;
+	}
+
+	//Get the digest of an entry, computing it from its input if necessary.
+	private String getDigest(Entry entry) throws Exception {
+		String digest = entry.digest;
+		if (digest == null) {
+			synchronized (entry) {
+				if (entry.digest == null) entry.digest = digest(new File(entry.path));
+				digest = entry.digest;
+			}
+		}
+		return digest;
+	}
+
+	/**
+	 * Check an instance against the index, adding it if its UID is new.
+	 * If the index holds a pending instance with the same UID, the check
+	 * is deferred: the whenDone task is run when that instance is done,
+	 * and the caller is to check the instance again then. If there is no
+	 * task, this waits until that instance is done.
+	 * @param uid the SOPInstanceUID of the instance.
+	 * @param file the instance's file.
+	 * @param outFile the file in which the anonymized instance is to be stored.
+	 * @param whenDone the task to run when a pending instance is done, or null to wait.
+	 * @return the outcome. If it is NEW, the caller must call complete()
+	 * or remove() for the instance when its processing ends.
+	 * @throws Exception if the file cannot be read or the thread is interrupted.
+	 */
+	public Check check(String uid, File file, File outFile, Runnable whenDone) throws Exception {
+		String path = file.getAbsolutePath();
+		String output = outFile.getAbsolutePath();
+		String digest = (eager || path.equals(output)) ? digest(file) : null;
+		Entry entry = new Entry(path, output, digest, true);
+		while (true) {
+			Entry existing = index.putIfAbsent(uid, entry);
+			if (existing == null) return Check.NEW;
+			synchronized (existing) {
+				if (existing.pending) {
+					if (whenDone != null) {
+						if (existing.waiters == null) existing.waiters = new ArrayList<Runnable>();
+						existing.waiters.add(whenDone);
+						return Check.DEFERRED;
+					}
+					while (existing.pending) existing.wait();
+				}
+			}
+			if (index.get(uid) != existing) continue; //removed; try to take its place
+			if (digest == null) digest = entry.digest = digest(file);
+			String existingDigest;
+			try { existingDigest = getDigest(existing); }
+			catch (Exception ex) {
+				//The first instance cannot be compared, so this one is processed.
+				logger.debug("Unable to compute the digest of "+existing.path, ex);
+				existingDigest = null;
+			}
+			if (digest.equals(existingDigest)) {
+				duplicates.incrementAndGet();
+				bytesSaved.addAndGet(file.length());
+				return Check.DUPLICATE;
+			}
+			conflicts.incrementAndGet();
+			return Check.CONFLICT;
+		}
+	}
+
+	/**
+	 * Complete a pending instance whose output has been committed,
+	 * so that its copies are skipped as duplicates.
+	 * @param uid the SOPInstanceUID of the instance.
+	 * @param file the instance's file.
+	 */
+	public void complete(String uid, File file) {
+		Entry entry = index.get(uid);
+		if ((entry != null) && entry.path.equals(file.getAbsolutePath())) {
+			run(entry.done());
+		}
+	}
+
+	/**
+	 * Remove a pending instance that could not be processed, so that
+	 * its copies are processed instead of being skipped as duplicates.
+	 * @param uid the SOPInstanceUID of the instance.
+	 * @param file the instance's file.
+	 */
+	public void remove(String uid, File file) {
+		Entry entry = index.get(uid);
+		if ((entry != null) && entry.isPending() && entry.path.equals(file.getAbsolutePath())) {
+			index.remove(uid, entry);
+			run(entry.done());
+		}
+	}
+
+	private static void run(List<Runnable> tasks) {
+		if (tasks != null) {
+			for (Runnable task : tasks) task.run();
+		}
+	}
+
+	/**
+	 * Get the entry for a UID.
+	 * @param uid the SOPInstanceUID.
+	 * @return the entry, or null if the UID is not in the index.
+	 */
+	public Entry get(String uid) {
+		return index.get(uid);
+	}
+
+	/**
+	 * Load the entries in a file saved by save(). Nothing is loaded if the file does not exist.
+	 * @param file the file.
+	 * @throws IOException if the file cannot be read.
+	 */
+	public void load(File file) throws IOException {
+		if (!file.exists()) return;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 4);
+				if (fields.length >= 3) {
+					String output = (fields.length == 4) ? fields[3] : fields[2];
+					index.put(fields[0], new Entry(fields[2], output, fields[1], false));
+				}
+			}
+		}
+		finally { reader.close(); }
+	}
+
+	/**
+	 * Save the completed instances as tab-delimited lines of UID, digest,
+	 * input path and output path. The index is written to a temporary file
+	 * that replaces the file only when it is complete.
+	 * @param file the file.
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void save(File file) throws IOException {
+		OutputWriter outputWriter = new OutputWriter(OutputWriter.Sync.FILE, 1);
+		File dir = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+			try {
+				for (Map.Entry<String,Entry> e : index.entrySet()) {
+					Entry entry = e.getValue();
+					if (entry.isPending() || (entry.digest == null)) continue;
+					writer.write(e.getKey() + "\t" + entry.digest + "\t" + entry.path + "\t" + entry.output + "\n");
+				}
+			}
+			finally { writer.close(); }
+			outputWriter.commit(temp, file);
+		}
+		finally { temp.delete(); }
+	}
+
+	/**
+	 * Get a report of the duplicates and conflicts found, and of the cost of the digests.
+	 * @param meanProcessingTime the mean time spent anonymizing one instance,
+	 * in milliseconds, used to estimate the processing time saved.
+	 * @return the report.
+	 */
+	public String getReport(double meanProcessingTime) {
+		long n = duplicates.get();
+		double mb = 1024. * 1024.;
+		return String.format(
+			"Duplicates skipped: %d (%.1f MB not processed, about %.3f s of processing saved)\n"
+			+ "Digests: %.1f MB read in %.3f s of processing\n"
+			+ "UID conflicts: %d",
+			n, bytesSaved.get()/mb, n * meanProcessingTime / 1000.,
+			bytesHashed.get()/mb, hashTime.get() / 1e9, conflicts.get());
+	}
+}
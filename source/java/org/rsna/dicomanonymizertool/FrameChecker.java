@@ -0,0 +1,107 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * Decodes the frames of a multi-frame object in parallel. The frames are
+ * divided into contiguous ranges, one per task, and the tasks are run on
+ * a fork-join pool shared by all the processing threads, so a run with one
+ * huge object can use all the cores. DicomObject keeps per-frame decoding
+ * state, so each task opens its own DicomObject on the file.
+ */
+public class FrameChecker {
+
+	/** The smallest number of frames worth giving to a task of its own. */
+	static final int minFramesPerTask = 8;
+
+	static ForkJoinPool pool = null;
+
+	/**
+	 * Get the pool shared by all frame decoding tasks.
+	 * @return the pool, created on first use with one thread per processor.
+	 */
+	static synchronized ForkJoinPool getPool() {
+		if (pool == null) pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 * Determine whether an object has enough frames to be worth decoding in parallel.
+	 * @param numberOfFrames the number of frames in the object.
+	 * @return true if the frames can be divided among at least two tasks.
+	 */
+	public static boolean isWorthSplitting(int numberOfFrames) {
+		return numberOfFrames >= 2 * minFramesPerTask;
+	}
+
+	/**
+	 * Get the number of tasks among which the frames of an object are divided.
+	 * @param numberOfFrames the number of frames in the object.
+	 * @param parallelism the maximum number of tasks.
+	 * @return the number of tasks, which is also the number of frames decoded at once.
+	 */
+	public static int getTaskCount(int numberOfFrames, int parallelism) {
+		return Math.max(1, Math.min(parallelism, numberOfFrames / minFramesPerTask));
+	}
+
+	/**
+	 * Decode all the frames of an object.
+	 * @param file the object.
+	 * @param numberOfFrames the number of frames in the object.
+	 * @param parallelism the maximum number of tasks among which to divide the frames.
+	 * @return true if every frame was decoded; false otherwise.
+	 * @throws Exception if a frame cannot be decoded.
+	 */
+	public static boolean checkAllFrames(final File file, int numberOfFrames, int parallelism) throws Exception {
+		int tasks = getTaskCount(numberOfFrames, parallelism);
+		int framesPerTask = (numberOfFrames + tasks - 1) / tasks;
+		List<ForkJoinTask<Boolean>> futures = new ArrayList<ForkJoinTask<Boolean>>();
+		ForkJoinPool pool = getPool();
+		for (int first=0; first<numberOfFrames; first+=framesPerTask) {
+			final int start = first;
+			final int end = Math.min(numberOfFrames, first + framesPerTask);
+			futures.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					return checkFrames(file, start, end);
+				}
+			}));
+		}
+		boolean ok = true;
+		Exception failure = null;
+		for (ForkJoinTask<Boolean> future : futures) {
+			try { ok &= future.get(); }
+			catch (Exception ex) {
+				if (failure == null) failure = ex;
+			}
+		}
+		if (failure != null) throw failure;
+		return ok;
+	}
+
+	//Decode the frames in the range [start, end).
+	private static boolean checkFrames(File file, int start, int end) throws Exception {
+		DicomObject dob = new DicomObject(file);
+		try {
+			BufferedImage img = null;
+			for (int k=start; k<end; k++) {
+				img = dob.getBufferedImage(k, false);
+				if (img == null) return false;
+			}
+			return true;
+		}
+		finally { dob.close(); }
+	}
+}
@@ -0,0 +1,585 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import javax.imageio.IIOException;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import org.apache.log4j.Logger;
+import org.dcm4che.data.*;
+import org.dcm4che.dict.Tags;
+import org.dcm4che.dict.VRs;
+import org.dcm4cheri.image.ImageReaderFactory;
+import org.rsna.ctp.objects.DicomObject;
+import org.rsna.ctp.stdstages.anonymizer.AnonymizerStatus;
+import org.rsna.ctp.stdstages.anonymizer.dicom.Regions;
+
+/**
+ * A pixel anonymizer that works on the frames of one multi-frame object in
+ * parallel. Each frame is read, decoded if it is JPEG lossless, blanked,
+ * and re-encoded as JPEG lossless if requested, in a task of its own on the
+ * fork-join pool shared with FrameChecker; the processing thread writes the
+ * frames to the output in order as they complete, keeping a bounded number
+ * of frames in flight.
+ * <p>
+ * The output is the same as that of the CTP DICOMDecompressor and
+ * DICOMPixelAnonymizer run one after the other: the same header changes,
+ * the same blanking values, and the same elements after the pixels. Only
+ * grayscale objects with 8 or 16 bits allocated in the little endian
+ * uncompressed and JPEG lossless transfer syntaxes are handled; anything
+ * else returns SKIP, and the caller uses the CTP stages instead.
+ */
+public class FramePixelAnonymizer {
+
+	static final Logger logger = Logger.getLogger(FramePixelAnonymizer.class);
+
+	static final String ImplicitVRLittleEndian = "1.2.840.10008.1.2";
+	static final String ExplicitVRLittleEndian = "1.2.840.10008.1.2.1";
+	static final String JPEGLossless = "1.2.840.10008.1.2.4.57";
+	static final String JPEGLosslessSV1 = "1.2.840.10008.1.2.4.70";
+
+	static final DcmParserFactory pFact = DcmParserFactory.getInstance();
+	static final DcmObjectFactory oFact = DcmObjectFactory.getInstance();
+
+	//The number of frames in flight for each unit of parallelism.
+	static final int framesInFlightPerTask = 2;
+
+	/**
+	 * Determine whether an object is one that this class handles and is
+	 * worth processing in parallel.
+	 * @param dob the object.
+	 * @param decompress true if JPEG lossless objects may be decompressed.
+	 * @return true if the object can be passed to anonymize().
+	 */
+	public static boolean canProcess(DicomObject dob, boolean decompress) {
+		if (!FrameChecker.isWorthSplitting(dob.getNumberOfFrames())) return false;
+		if (dob.getSamplesPerPixel() != 1) return false;
+		String photometric = dob.getPhotometricInterpretation();
+		photometric = (photometric != null) ? photometric.trim().toUpperCase() : "";
+		if (!photometric.equals("MONOCHROME1") && !photometric.equals("MONOCHROME2")) return false;
+		int bitsAllocated = dob.getBitsAllocated();
+		if ((bitsAllocated != 8) && (bitsAllocated != 16)) return false;
+		String tsUID = dob.getTransferSyntaxUID();
+		if (tsUID.equals(ImplicitVRLittleEndian) || tsUID.equals(ExplicitVRLittleEndian)) return true;
+		return decompress && (tsUID.equals(JPEGLossless) || tsUID.equals(JPEGLosslessSV1));
+	}
+
+	/**
+	 * Blank the regions in the frames of an object, decompressing the frames
+	 * first if they are JPEG lossless.
+	 * @param inFile the object.
+	 * @param outFile the file to write.
+	 * @param regions the regions to blank.
+	 * @param setBIRElement true if the BurnedInAnnotation element is to be set to NO.
+	 * @param testmode true if the regions are to be blanked in mid-gray.
+	 * @param recompress true if decompressed frames are to be recompressed as JPEG lossless.
+	 * @param parallelism the maximum number of frames processed at once.
+	 * @param bufferPool the pool from which the frame buffers are obtained.
+	 * @return OK if the object was written; SKIP if the object is not one
+	 * that this class handles, including one whose frames cannot be located
+	 * or decoded, in which case nothing is written and the CTP stages are
+	 * to be run instead; or QUARANTINE if an I/O error stopped the processing.
+	 */
+	public static AnonymizerStatus anonymize(
+			File inFile,
+			File outFile,
+			Regions regions,
+			boolean setBIRElement,
+			boolean testmode,
+			boolean recompress,
+			int parallelism,
+			BufferPool bufferPool) {
+
+		long fileLength = inFile.length();
+		BufferedInputStream in = null;
+		RandomAccessFile raf = null;
+		OutputStream out = null;
+		try {
+			in = new BufferedInputStream(new FileInputStream(inFile));
+			DcmParser parser = pFact.newDcmParser(in);
+			FileFormat fileFormat = parser.detectFileFormat();
+			if (fileFormat == null) throw new IOException("Unrecognized file format: "+inFile);
+			Dataset ds = oFact.newDataset();
+			parser.setDcmHandler(ds.getDcmHandler());
+			parser.parseDcmFile(fileFormat, Tags.PixelData);
+			if (parser.getReadTag() != Tags.PixelData) return AnonymizerStatus.SKIP(inFile, "Not an image");
+
+			FileMetaInfo fmi = ds.getFileMetaInfo();
+			String tsUID = (fmi != null) ? fmi.getTransferSyntaxUID() : ImplicitVRLittleEndian;
+			DcmDecodeParam decodeParam = parser.getDcmDecodeParam();
+			boolean encapsulated = decodeParam.encapsulated;
+			Frames f = new Frames(ds);
+			if (!f.isSupported()
+					|| (decodeParam.byteOrder != ByteOrder.LITTLE_ENDIAN)
+					|| (encapsulated && !tsUID.equals(JPEGLossless) && !tsUID.equals(JPEGLosslessSV1))) {
+				return AnonymizerStatus.SKIP(inFile, "Unsupported pixel format");
+			}
+
+			//Locate the frames in the file.
+			long pixelPosition = parser.getStreamPosition();
+			int pixelLength = parser.getReadLength();
+			int pixelVR = parser.getReadVR();
+			long[][] fragments = null;
+			if (encapsulated) {
+				fragments = getFragments(parser, f.frames);
+				if (fragments == null) return AnonymizerStatus.SKIP(inFile, "Unable to locate the frames");
+			}
+			else if (pixelLength != f.totalLength + (f.totalLength & 1)) {
+				return AnonymizerStatus.SKIP(inFile, "Unexpected pixel data length: "+pixelLength);
+			}
+			String outTSUID = !encapsulated ? tsUID : (recompress ? JPEGLosslessSV1 : ExplicitVRLittleEndian);
+			DcmEncodeParam encParam = DcmDecodeParam.valueOf(outTSUID);
+
+			//Write everything up to the pixels.
+			out = new BufferedOutputStream(new FileOutputStream(outFile));
+			fmi = oFact.newFileMetaInfo(ds, outTSUID);
+			ds.setFileMetaInfo(fmi);
+			fmi.write(out);
+			if (setBIRElement) ds.putCS(Tags.BurnedInAnnotation, "NO");
+			ds.writeDataset(out, encParam);
+			if (!encapsulated) {
+				ds.writeHeader(out, encParam, Tags.PixelData, pixelVR, pixelLength);
+			}
+			else if (!recompress) {
+				int vr = (f.bytesPerSample == 1) ? VRs.OB : VRs.OW;
+				ds.writeHeader(out, encParam, Tags.PixelData, vr, (int)(f.totalLength + (f.totalLength & 1)));
+			}
+			else {
+				ds.writeHeader(out, encParam, Tags.PixelData, VRs.OB, -1);
+				ds.writeHeader(out, encParam, Tags.Item, VRs.NONE, 0);
+			}
+
+			//Process the frames in parallel, writing them in order.
+			raf = new RandomAccessFile(inFile, "r");
+			FrameTask.Context context =
+				new FrameTask.Context(raf.getChannel(), pixelPosition, fragments, tsUID, f, regions,
+										getBlankingValue(f, testmode), encapsulated && recompress, bufferPool);
+			if (encapsulated) context.readers.offer(getReader(tsUID));
+			int window = framesInFlightPerTask * Math.max(1, parallelism);
+			ForkJoinPool pool = FrameChecker.getPool();
+			ArrayDeque<ForkJoinTask<FrameTask.Result>> inFlight = new ArrayDeque<ForkJoinTask<FrameTask.Result>>();
+			int next = 0;
+			try {
+				for (int k=0; k<f.frames; k++) {
+					while ((next < f.frames) && (next < k + window)) {
+						inFlight.add(pool.submit(new FrameTask(context, next++)));
+					}
+					FrameTask.Result frame = getResult(inFlight.poll());
+					try {
+						if (context.encode) ds.writeHeader(out, encParam, Tags.Item, VRs.NONE, frame.length);
+						out.write(frame.bytes, 0, frame.length);
+					}
+					finally { bufferPool.release(frame.bytes); }
+				}
+			}
+			finally {
+				for (ForkJoinTask<FrameTask.Result> task : inFlight) task.cancel(true);
+			}
+			if (context.encode) ds.writeHeader(out, encParam, Tags.SeqDelimitationItem, VRs.NONE, 0);
+			else if ((f.totalLength & 1) != 0) out.write(0);
+
+			//Copy the elements after the pixels.
+			if (!encapsulated) {
+				skipFully(parser.getInputStream(), pixelLength);
+				parser.setStreamPosition(parser.getStreamPosition() + pixelLength);
+			}
+			byte[] buffer = bufferPool.acquire(4096);
+			try {
+				if (parser.getStreamPosition() < fileLength) parser.parseHeader();
+				int tag;
+				while (!parser.hasSeenEOF()
+						&& (parser.getStreamPosition() < fileLength)
+						&& ((tag = parser.getReadTag()) != -1)
+						&& (tag != Tags.DigitalSignaturesSeq)
+						&& (tag != Tags.DataSetTrailingPadding)) {
+					ds.writeHeader(out, encParam, tag, parser.getReadVR(), parser.getReadLength());
+					copyValue(parser, buffer, out);
+					parser.parseHeader();
+				}
+			}
+			finally { bufferPool.release(buffer); }
+			out.close();
+			out = null;
+			return AnonymizerStatus.OK(outFile, "");
+		}
+		catch (Exception ex) {
+			logger.debug("Unable to process "+inFile, ex);
+			if (out != null) {
+				try { out.close(); }
+				catch (Exception ignore) { }
+			}
+			outFile.delete();
+			//Only an I/O error is final; anything else is left to the CTP stages.
+			if ((ex instanceof IOException) && !(ex instanceof IIOException)) {
+				return AnonymizerStatus.QUARANTINE(inFile, ex.getMessage());
+			}
+			return AnonymizerStatus.SKIP(inFile, (ex instanceof FormatException) ? ex.getMessage() : ex.toString());
+		}
+		finally {
+			close(in);
+			close(raf);
+		}
+	}
+
+	//The geometry of the frames of an object.
+	static class Frames {
+		final int frames;
+		final int rows;
+		final int columns;
+		final int bitsAllocated;
+		final int bitsStored;
+		final int samplesPerPixel;
+		final String photometric;
+		final int bytesPerSample;
+		final int frameLength;
+		final long totalLength;
+
+		Frames(Dataset ds) {
+			frames = ds.getInt(Tags.NumberOfFrames, 1);
+			rows = ds.getInt(Tags.Rows, 0);
+			columns = ds.getInt(Tags.Columns, 0);
+			bitsAllocated = ds.getInt(Tags.BitsAllocated, 16);
+			bitsStored = ds.getInt(Tags.BitsStored, bitsAllocated);
+			samplesPerPixel = ds.getInt(Tags.SamplesPerPixel, 1);
+			String pi = ds.getString(Tags.PhotometricInterpretation, "");
+			photometric = (pi != null) ? pi.toUpperCase() : "";
+			bytesPerSample = bitsAllocated / 8;
+			frameLength = rows * columns * bytesPerSample;
+			totalLength = (long)frames * frameLength;
+		}
+
+		boolean isSupported() {
+			return (frames > 0) && (rows > 0) && (columns > 0)
+					&& ((bitsAllocated == 8) || (bitsAllocated == 16))
+					&& (bitsStored > 1) && (bitsStored <= bitsAllocated)
+					&& (samplesPerPixel == 1)
+					&& (photometric.equals("MONOCHROME1") || photometric.equals("MONOCHROME2"));
+		}
+	}
+
+	//Get the value with which the DICOMPixelAnonymizer blanks grayscale pixels.
+	private static byte getBlankingValue(Frames f, boolean testmode) {
+		if (f.photometric.equals("MONOCHROME1")) {
+			if (f.bytesPerSample == 2) return (byte)(testmode ? 8 : 15);
+			return (byte)(testmode ? 127 : 255);
+		}
+		if (f.bytesPerSample == 2) return (byte)(testmode ? 8 : 0);
+		return (byte)(testmode ? 127 : 0);
+	}
+
+	//Read the items of encapsulated pixel data, leaving the parser after the
+	//sequence delimiter, and get the position and length of the fragments of
+	//each frame, or null if the frames cannot be located.
+	private static long[][] getFragments(DcmParser parser, int frames) throws Exception {
+		InputStream in = parser.getInputStream();
+		parser.parseHeader();
+		if (parser.getReadTag() != Tags.Item) throw new FormatException("Missing Basic Offset Table");
+		int botLength = parser.getReadLength();
+		byte[] bot = new byte[botLength];
+		readFully(in, bot);
+		parser.setStreamPosition(parser.getStreamPosition() + botLength);
+		long firstItem = parser.getStreamPosition();
+
+		List<long[]> items = new ArrayList<long[]>();
+		parser.parseHeader();
+		while (parser.getReadTag() == Tags.Item) {
+			long position = parser.getStreamPosition();
+			int length = parser.getReadLength();
+			items.add(new long[] { position, length });
+			skipFully(in, length);
+			parser.setStreamPosition(position + length);
+			parser.parseHeader();
+		}
+		if (parser.getReadTag() != Tags.SeqDelimitationItem) {
+			throw new FormatException("Unexpected Tag: "+Tags.toString(parser.getReadTag()));
+		}
+		if (items.size() == 0) return null;
+
+		//Frame k is made of the fragments from index[k] to index[k+1].
+		int[] index = new int[frames + 1];
+		if (items.size() == frames) {
+			for (int k=0; k<=frames; k++) index[k] = k;
+		}
+		else if (frames == 1) {
+			index[1] = items.size();
+		}
+		else if (botLength == 4 * frames) {
+			ByteBuffer offsets = ByteBuffer.wrap(bot).order(ByteOrder.LITTLE_ENDIAN);
+			int i = 0;
+			for (int k=0; k<frames; k++) {
+				long offset = offsets.getInt(4 * k) & 0xffffffffL;
+				while ((i < items.size()) && (items.get(i)[0] - 8 - firstItem < offset)) i++;
+				if ((i == items.size()) || (items.get(i)[0] - 8 - firstItem != offset)) return null;
+				index[k] = i;
+			}
+			index[frames] = items.size();
+		}
+		else return null;
+
+		long[][] fragments = new long[frames][];
+		for (int k=0; k<frames; k++) {
+			int n = index[k + 1] - index[k];
+			if (n <= 0) return null;
+			fragments[k] = new long[2 * n];
+			for (int i=0; i<n; i++) {
+				long[] item = items.get(index[k] + i);
+				fragments[k][2 * i] = item[0];
+				fragments[k][2 * i + 1] = item[1];
+			}
+		}
+		return fragments;
+	}
+
+	//Get a decoder for a transfer syntax. The reader is chosen as the CTP
+	//stages choose it, from the dcm4che list of preferred reader classes,
+	//so the result does not depend on the order of the jars on the classpath.
+	static ImageReader getReader(String tsUID) throws FormatException {
+		try { return ImageReaderFactory.getInstance().getReaderForTransferSyntax(tsUID); }
+		catch (Exception ex) {
+			throw new FormatException("No image reader for "+tsUID+": "+ex.getMessage());
+		}
+	}
+
+	//Wait for a frame, unwrapping the exception that stopped its task.
+	private static FrameTask.Result getResult(ForkJoinTask<FrameTask.Result> task) throws Exception {
+		try { return task.get(); }
+		catch (ExecutionException ex) {
+			//The pool wraps the checked exceptions of a Callable in RuntimeExceptions.
+			Throwable cause = ex.getCause();
+			while ((cause instanceof RuntimeException) && (cause.getCause() instanceof Exception)) {
+				cause = cause.getCause();
+			}
+			if (cause instanceof Exception) throw (Exception)cause;
+			throw ex;
+		}
+	}
+
+	//Copy the value of the element whose header was just parsed.
+	private static void copyValue(DcmParser parser, byte[] buffer, OutputStream out) throws IOException {
+		InputStream in = parser.getInputStream();
+		int length = parser.getReadLength();
+		int remaining = length;
+		while (remaining > 0) {
+			int n = in.read(buffer, 0, Math.min(buffer.length, remaining));
+			if (n == -1) throw new EOFException("EOF while reading element value");
+			out.write(buffer, 0, n);
+			remaining -= n;
+		}
+		parser.setStreamPosition(parser.getStreamPosition() + length);
+	}
+
+	static void readFully(InputStream in, byte[] bytes) throws IOException {
+		int count = 0;
+		while (count < bytes.length) {
+			int n = in.read(bytes, count, bytes.length - count);
+			if (n == -1) throw new EOFException("Unable to read all the pixels");
+			count += n;
+		}
+	}
+
+	private static void skipFully(InputStream in, long length) throws IOException {
+		while (length > 0) {
+			long n = in.skip(length);
+			if (n <= 0) {
+				if (in.read() == -1) throw new EOFException("Unable to read all the pixels");
+				n = 1;
+			}
+			length -= n;
+		}
+	}
+
+	private static void close(Closeable c) {
+		if (c != null) {
+			try { c.close(); }
+			catch (Exception ignore) { }
+		}
+	}
+
+	//The work on one frame: read it, decode it if necessary, blank it,
+	//and encode it if required. The result is a pooled buffer holding the
+	//native frame, or the encoded frame.
+	static class FrameTask implements Callable<FrameTask.Result> {
+
+		//A processed frame: the bytes to write and the buffer that holds them.
+		static class Result {
+			final byte[] bytes;
+			final int length;
+
+			Result(byte[] bytes, int length) {
+				this.bytes = bytes;
+				this.length = length;
+			}
+		}
+
+		//The state shared by all the frames of an object.
+		static class Context {
+			final FileChannel channel;
+			final long pixelPosition;
+			final long[][] fragments;
+			final String tsUID;
+			final Frames f;
+			final int[][] ranges;
+			final byte value;
+			final boolean encode;
+			final BufferPool bufferPool;
+			final ConcurrentLinkedQueue<ImageReader> readers = new ConcurrentLinkedQueue<ImageReader>();
+
+			Context(FileChannel channel, long pixelPosition, long[][] fragments, String tsUID, Frames f,
+					Regions regions, byte value, boolean encode, BufferPool bufferPool) {
+				this.channel = channel;
+				this.pixelPosition = pixelPosition;
+				this.fragments = fragments;
+				this.tsUID = tsUID;
+				this.f = f;
+				this.value = value;
+				this.encode = encode;
+				this.bufferPool = bufferPool;
+				//The regions are the same in every frame.
+				ranges = new int[f.rows][];
+				for (int r=0; r<f.rows; r++) ranges[r] = regions.getRangesFor(r, f.rows, f.columns);
+			}
+		}
+
+		final Context context;
+		final int frame;
+
+		FrameTask(Context context, int frame) {
+			this.context = context;
+			this.frame = frame;
+		}
+
+		public Result call() throws Exception {
+			Frames f = context.f;
+			byte[] pixels = context.bufferPool.acquire(f.frameLength);
+			boolean returned = false;
+			try {
+				if (context.fragments == null) {
+					read(pixels, f.frameLength, context.pixelPosition + (long)frame * f.frameLength);
+				}
+				else decode(pixels);
+				blank(pixels);
+				if (context.encode) {
+					JPEGLosslessEncoder.Output jpeg =
+						JPEGLosslessEncoder.encode(pixels, 0, f.rows, f.columns,
+													f.bytesPerSample, f.bitsStored, context.bufferPool);
+					return new Result(jpeg.buffer, jpeg.length);
+				}
+				returned = true;
+				return new Result(pixels, f.frameLength);
+			}
+			finally {
+				if (!returned) context.bufferPool.release(pixels);
+			}
+		}
+
+		//Read bytes from the file at a position; FileChannel reads at a position are thread-safe.
+		private void read(byte[] bytes, int length, long position) throws IOException {
+			ByteBuffer bb = ByteBuffer.wrap(bytes, 0, length);
+			while (bb.hasRemaining()) {
+				int n = context.channel.read(bb, position + bb.position());
+				if (n == -1) throw new EOFException("Unable to read all the pixels");
+			}
+		}
+
+		//Decode the fragments of the frame into native little endian samples.
+		private void decode(byte[] pixels) throws Exception {
+			Frames f = context.f;
+			long[] fragments = context.fragments[frame];
+			int length = 0;
+			for (int i=1; i<fragments.length; i+=2) length += (int)fragments[i];
+			byte[] jpeg = context.bufferPool.acquire(length);
+			ImageReader reader = context.readers.poll();
+			try {
+				int offset = 0;
+				for (int i=0; i<fragments.length; i+=2) {
+					ByteBuffer bb = ByteBuffer.wrap(jpeg, offset, (int)fragments[i + 1]);
+					while (bb.hasRemaining()) {
+						if (context.channel.read(bb, fragments[i] + bb.position() - offset) == -1) {
+							throw new EOFException("Unable to read all the pixels");
+						}
+					}
+					offset += (int)fragments[i + 1];
+				}
+				if (reader == null) reader = getReader(context.tsUID);
+				BufferedImage img;
+				//The stream is in memory, so a failure is a problem with the data, not I/O.
+				try {
+					reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg, 0, length)));
+					img = reader.read(0);
+				}
+				catch (IOException | RuntimeException ex) {
+					throw new FormatException("Unable to decode frame "+frame+": "+ex);
+				}
+				Raster raster = img.getRaster();
+				int type = raster.getDataBuffer().getDataType();
+				boolean matches = (f.bytesPerSample == 1)
+									? (type == DataBuffer.TYPE_BYTE)
+									: ((type == DataBuffer.TYPE_USHORT) || (type == DataBuffer.TYPE_SHORT));
+				if ((raster.getWidth() != f.columns) || (raster.getHeight() != f.rows)
+						|| (raster.getNumBands() != 1) || !matches) {
+					throw new FormatException("Frame "+frame+" does not match the image description");
+				}
+				int[] row = new int[f.columns];
+				int p = 0;
+				for (int y=0; y<f.rows; y++) {
+					raster.getSamples(0, y, f.columns, 1, 0, row);
+					if (f.bytesPerSample == 1) {
+						for (int x=0; x<f.columns; x++) pixels[p++] = (byte)row[x];
+					}
+					else {
+						for (int x=0; x<f.columns; x++) {
+							pixels[p++] = (byte)row[x];
+							pixels[p++] = (byte)(row[x] >> 8);
+						}
+					}
+				}
+			}
+			finally {
+				context.bufferPool.release(jpeg);
+				if (reader != null) context.readers.offer(reader);
+			}
+		}
+
+		//Blank the regions in the frame, in the same way as the DICOMPixelAnonymizer.
+		private void blank(byte[] pixels) {
+			Frames f = context.f;
+			int rowLength = f.columns * f.bytesPerSample;
+			for (int r=0; r<f.rows; r++) {
+				int[] ranges = context.ranges[r];
+				int rowStart = r * rowLength;
+				for (int i=0; i<ranges.length; i+=2) {
+					int start = f.bytesPerSample * ranges[i];
+					int end = Math.min(f.bytesPerSample * (ranges[i + 1] + 1), rowLength);
+					if (start < end) Arrays.fill(pixels, rowStart + start, rowStart + end, context.value);
+				}
+			}
+		}
+	}
+
+	//A problem with the encoding of an object, which the CTP stages may handle.
+	static class FormatException extends Exception {
+		static final long serialVersionUID = 1L;
+
+		FormatException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.util.Arrays;
+
+/**
+ * An encoder for single-component frames in the JPEG lossless process 14,
+ * first-order prediction (selection value 1), as required by the transfer
+ * syntax 1.2.840.10008.1.2.4.70. Each frame gets its own optimal Huffman
+ * table, built from the frequencies of its difference categories. The
+ * encoder keeps no state, so frames can be encoded concurrently.
+ */
+public class JPEGLosslessEncoder {
+
+	//The number of difference categories (SSSS = 0-16).
+	static final int categories = 17;
+
+	/**
+	 * Encode one frame of native little-endian grayscale samples.
+	 * @param pixels the array containing the frame.
+	 * @param offset the index of the first byte of the frame in the array.
+	 * @param rows the number of rows in the frame.
+	 * @param columns the number of columns in the frame.
+	 * @param bytesPerSample the number of bytes in each sample (1 or 2).
+	 * @param precision the number of bits stored in each sample (2-16);
+	 * any higher bits are ignored.
+	 * @return the JPEG stream, padded to an even length as required
+	 * for a fragment of encapsulated pixel data.
+	 */
+	public static byte[] encode(byte[] pixels, int offset, int rows, int columns,
+								int bytesPerSample, int precision) {
+		return encode(pixels, offset, rows, columns, bytesPerSample, precision, null).toByteArray();
+	}
+
+	//Encode one frame into a buffer obtained from a pool, if one is supplied.
+	//The caller returns the buffer to the pool when it has written the stream.
+	static Output encode(byte[] pixels, int offset, int rows, int columns,
+						 int bytesPerSample, int precision, BufferPool pool) {
+		int mask = (1 << precision) - 1;
+
+		//Build the Huffman table from the frequencies of the categories.
+		int[] freq = new int[categories];
+		for (int y=0; y<rows; y++) {
+			for (int x=0; x<columns; x++) {
+				freq[getCategory(getDifference(pixels, offset, y, x, columns, bytesPerSample, mask, precision))]++;
+			}
+		}
+		int[] bits = new int[17];
+		int[] huffval = getHuffmanTable(freq, bits);
+		int[] ehufco = new int[categories];
+		int[] ehufsi = new int[categories];
+		int code = 0;
+		int k = 0;
+		for (int len=1; len<=16; len++) {
+			for (int i=0; i<bits[len]; i++) {
+				ehufco[huffval[k]] = code++;
+				ehufsi[huffval[k]] = len;
+				k++;
+			}
+			code <<= 1;
+		}
+
+		Output out = new Output(rows * columns * bytesPerSample / 2 + 1024, pool);
+
+		//SOI, SOF3, DHT, SOS
+		out.putShort(0xFFD8);
+		out.putShort(0xFFC3);
+		out.putShort(11);
+		out.put(precision);
+		out.putShort(rows);
+		out.putShort(columns);
+		out.put(1);
+		out.put(1);
+		out.put(0x11);
+		out.put(0);
+		out.putShort(0xFFC4);
+		out.putShort(3 + 16 + huffval.length);
+		out.put(0);
+		for (int len=1; len<=16; len++) out.put(bits[len]);
+		for (int v : huffval) out.put(v);
+		out.putShort(0xFFDA);
+		out.putShort(8);
+		out.put(1);
+		out.put(1);
+		out.put(0);
+		out.put(1);
+		out.put(0);
+		out.put(0);
+
+		//The entropy-coded segment
+		for (int y=0; y<rows; y++) {
+			for (int x=0; x<columns; x++) {
+				int diff = getDifference(pixels, offset, y, x, columns, bytesPerSample, mask, precision);
+				int ssss = getCategory(diff);
+				out.putBits(ehufco[ssss], ehufsi[ssss]);
+				if ((ssss != 0) && (ssss != 16)) {
+					if (diff < 0) diff--;
+					out.putBits(diff & ((1 << ssss) - 1), ssss);
+				}
+			}
+		}
+		out.flushBits();
+
+		//EOI
+		out.putShort(0xFFD9);
+		if ((out.length & 1) != 0) out.put(0);
+		return out;
+	}
+
+	//Get the difference between a sample and its prediction, modulo 2^16.
+	private static int getDifference(byte[] pixels, int offset, int y, int x, int columns,
+									 int bytesPerSample, int mask, int precision) {
+		int i = y * columns + x;
+		int sample = getSample(pixels, offset, i, bytesPerSample) & mask;
+		int prediction;
+		if (x > 0) prediction = getSample(pixels, offset, i - 1, bytesPerSample) & mask;
+		else if (y > 0) prediction = getSample(pixels, offset, i - columns, bytesPerSample) & mask;
+		else prediction = 1 << (precision - 1);
+		return (short)(sample - prediction);
+	}
+
+	private static int getSample(byte[] pixels, int offset, int i, int bytesPerSample) {
+		if (bytesPerSample == 1) return pixels[offset + i] & 0xff;
+		int p = offset + 2 * i;
+		return (pixels[p] & 0xff) | ((pixels[p + 1] & 0xff) << 8);
+	}
+
+	//Get the SSSS category of a difference. The difference -32768 is coded as category 16.
+	private static int getCategory(int diff) {
+		if (diff == 0) return 0;
+		if (diff == -32768) return 16;
+		return 32 - Integer.numberOfLeadingZeros(Math.abs(diff));
+	}
+
+	//Build an optimal Huffman table with code lengths limited to 16 bits,
+	//following Annex K.2 of ITU T.81. The BITS list is returned in bits[1-16];
+	//the HUFFVAL list is returned.
+	private static int[] getHuffmanTable(int[] frequencies, int[] bits) {
+		//One extra symbol with frequency 1 guarantees that no code is all ones.
+		int n = categories + 1;
+		long[] freq = new long[n];
+		for (int i=0; i<categories; i++) freq[i] = frequencies[i];
+		freq[categories] = 1;
+		int[] codesize = new int[n];
+		int[] others = new int[n];
+		Arrays.fill(others, -1);
+		while (true) {
+			int v1 = -1;
+			int v2 = -1;
+			for (int i=0; i<n; i++) {
+				if ((freq[i] > 0) && ((v1 < 0) || (freq[i] <= freq[v1]))) v1 = i;
+			}
+			for (int i=0; i<n; i++) {
+				if ((i != v1) && (freq[i] > 0) && ((v2 < 0) || (freq[i] <= freq[v2]))) v2 = i;
+			}
+			if (v2 < 0) break;
+			freq[v1] += freq[v2];
+			freq[v2] = 0;
+			codesize[v1]++;
+			while (others[v1] >= 0) {
+				v1 = others[v1];
+				codesize[v1]++;
+			}
+			others[v1] = v2;
+			codesize[v2]++;
+			while (others[v2] >= 0) {
+				v2 = others[v2];
+				codesize[v2]++;
+			}
+		}
+		int[] count = new int[Math.max(33, n + 1)];
+		for (int i=0; i<n; i++) {
+			if (codesize[i] > 0) count[codesize[i]]++;
+		}
+		//Limit the code lengths to 16 bits.
+		for (int i=count.length-1; i>16; i--) {
+			while (count[i] > 0) {
+				int j = i - 2;
+				while (count[j] == 0) j--;
+				count[i] -= 2;
+				count[i - 1]++;
+				count[j + 1] += 2;
+				count[j]--;
+			}
+		}
+		//Remove the reserved code, which is one of the longest.
+		int longest = 16;
+		while (count[longest] == 0) longest--;
+		count[longest]--;
+		for (int i=1; i<=16; i++) bits[i] = count[i];
+
+		//List the symbols in order of increasing code size; the reserved symbol is last.
+		int[] huffval = new int[n - 1];
+		int k = 0;
+		for (int size=1; size<=32 && k<huffval.length; size++) {
+			for (int i=0; i<categories; i++) {
+				if (codesize[i] == size) huffval[k++] = i;
+			}
+		}
+		int[] result = new int[k];
+		System.arraycopy(huffval, 0, result, 0, k);
+		return result;
+	}
+
+	//A growable byte array with a bit writer that stuffs a zero byte after each 0xFF.
+	//With a pool, the array and its replacements are obtained from the pool.
+	static class Output {
+		final BufferPool pool;
+		byte[] buffer;
+		int length = 0;
+		long bitBuffer = 0;
+		int bitCount = 0;
+
+		Output(int capacity, BufferPool pool) {
+			this.pool = pool;
+			buffer = allocate(Math.max(capacity, 256));
+		}
+
+		private byte[] allocate(int size) {
+			return (pool != null) ? pool.acquire(size) : new byte[size];
+		}
+
+		void put(int b) {
+			if (length == buffer.length) {
+				byte[] bigger = allocate(2 * buffer.length);
+				System.arraycopy(buffer, 0, bigger, 0, length);
+				if (pool != null) pool.release(buffer);
+				buffer = bigger;
+			}
+			buffer[length++] = (byte)b;
+		}
+
+		void putShort(int s) {
+			put(s >> 8);
+			put(s);
+		}
+
+		void putBits(int value, int count) {
+			bitBuffer = (bitBuffer << count) | (value & ((1L << count) - 1));
+			bitCount += count;
+			while (bitCount >= 8) {
+				int b = (int)(bitBuffer >> (bitCount - 8)) & 0xff;
+				put(b);
+				if (b == 0xff) put(0);
+				bitCount -= 8;
+			}
+		}
+
+		//Pad the last byte with 1 bits. If the data end on a byte boundary, a whole
+		//byte of padding is written, without which some decoders (including the
+		//one CTP uses) misread the last sample.
+		void flushBits() {
+			putBits(0xff, (bitCount > 0) ? (8 - bitCount) : 8);
+		}
+
+		byte[] toByteArray() {
+			byte[] bytes = new byte[length];
+			System.arraycopy(buffer, 0, bytes, 0, length);
+			return bytes;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.util.HashSet;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A memory budget for admitting pixel-heavy objects. Each object
+ * reserves its estimated decoded footprint before its pixel stages run
+ * and releases it when it is done. Requests are admitted in arrival
+ * order, so a large object waiting for memory is not starved by a stream
+ * of small ones. A request larger than the whole budget is clamped to the
+ * budget, so that object is processed alone.
+ */
+public class MemoryBudget {
+
+	final long capacity;
+	long inUse = 0;
+	long nextTicket = 0;
+	long nowServing = 0;
+	final HashSet<Long> cancelledTickets = new HashSet<Long>();
+
+	/**
+	 * Construct a budget.
+	 * @param capacity the number of bytes available to objects being processed.
+	 */
+	public MemoryBudget(long capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Parse a size specification like 8g, 512m, 65536k or 1000000.
+	 * @param size the size specification.
+	 * @return the number of bytes.
+	 * @throws NumberFormatException if the specification cannot be parsed.
+	 */
+	public static long parseSize(String size) {
+		String s = size.trim().toLowerCase();
+		long multiplier = 1;
+		if (s.endsWith("b")) s = s.substring(0, s.length()-1);
+		if (s.endsWith("k")) multiplier = 1024L;
+		else if (s.endsWith("m")) multiplier = 1024L * 1024L;
+		else if (s.endsWith("g")) multiplier = 1024L * 1024L * 1024L;
+		if (multiplier != 1) s = s.substring(0, s.length()-1);
+		return (long)(Double.parseDouble(s.trim()) * multiplier);
+	}
+
+	/**
+	 * Estimate the memory needed to process the pixels of an object from its
+	 * header: Rows x Columns x frames x bytes per sample x samples per pixel,
+	 * doubled to allow for the working copy made by each pixel stage.
+	 * @param dob the object.
+	 * @return the estimated footprint in bytes, or zero if the object is not an image.
+	 */
+	public static long estimateFootprint(DicomObject dob) {
+		return estimateFootprint(dob, Math.max(1, dob.getNumberOfFrames()));
+	}
+
+	/**
+	 * Estimate the memory needed to decode some of the frames of an object.
+	 * @param dob the object.
+	 * @param frames the number of frames decoded at once.
+	 * @return the estimated footprint in bytes, or zero if the object is not an image.
+	 */
+	public static long estimateFootprint(DicomObject dob, int frames) {
+		if (!dob.isImage()) return 0;
+		long rows = dob.getRows();
+		long columns = dob.getColumns();
+		long bytesPerSample = Math.max(1, (dob.getBitsAllocated() + 7) / 8);
+		long samples = Math.max(1, dob.getSamplesPerPixel());
+		return 2 * rows * columns * frames * bytesPerSample * samples;
+	}
+
+	/**
+	 * Reserve memory, waiting until it is available and all earlier
+	 * requests have been admitted.
+	 * @param bytes the number of bytes requested.
+	 * @return the number of bytes actually reserved, which must be passed to release().
+	 * @throws InterruptedException if the thread is interrupted while waiting.
+	 */
+	public synchronized long acquire(long bytes) throws InterruptedException {
+		long n = Math.max(0, Math.min(bytes, capacity));
+		long ticket = nextTicket++;
+		try {
+			while ((ticket != nowServing) || (inUse + n > capacity)) wait();
+		}
+		catch (InterruptedException ex) {
+			//Give up the place in line without blocking the requests behind it.
+			if (ticket == nowServing) {
+				nowServing++;
+				skipCancelled();
+			}
+			else cancelledTickets.add(ticket);
+			notifyAll();
+			throw ex;
+		}
+		inUse += n;
+		nowServing++;
+		skipCancelled();
+		notifyAll();
+		return n;
+	}
+
+	/**
+	 * Release memory reserved by acquire().
+	 * @param bytes the value returned by acquire().
+	 */
+	public synchronized void release(long bytes) {
+		inUse = Math.max(0, inUse - bytes);
+		notifyAll();
+	}
+
+	/**
+	 * Get the capacity of the budget.
+	 * @return the number of bytes available to objects being processed.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the reserved memory.
+	 * @return the number of bytes currently reserved.
+	 */
+	public synchronized long getInUse() {
+		return inUse;
+	}
+
+	//Skip the tickets abandoned by interrupted threads.
+	private void skipCancelled() {
+		while (cancelledTickets.remove(nowServing)) nowServing++;
+	}
+}
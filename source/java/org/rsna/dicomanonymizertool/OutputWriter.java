@@ -0,0 +1,291 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import org.apache.log4j.Logger;
+import org.rsna.util.FileUtil;
+
+/**
+ * The output stage of the pipeline. Every stage writes to a file in a
+ * scratch directory in the directory of the final output, and only a
+ * completely processed object is moved into place, atomically where the
+ * file system supports it, so a crash never leaves a partially written
+ * object under the output name, and an input being anonymized in place is
+ * untouched until its replacement is complete. The scratch directories
+ * that a crash leaves behind are deleted by sweep() at the start of the
+ * next run.
+ * <p>
+ * The sync mode controls durability:
+ * <ul>
+ * <li>NONE: nothing is forced to disk; the operating system decides.</li>
+ * <li>FILE: each object is forced to disk before it is moved, and its
+ * directory is forced after the move.</li>
+ * <li>DIRECTORY: the objects committed to a directory are moved and the
+ * directory is forced in groups. Each thread forces its own object, so the
+ * objects of a group are forced concurrently; then one thread moves all the
+ * objects of the group into place and forces the directory once for them.
+ * A group holds the objects that were committed while the previous group
+ * was being synced, up to groupSize of them.</li>
+ * </ul>
+ * In every mode, commit() returns when the object is in place and as
+ * durable as the mode requires.
+ */
+public class OutputWriter {
+
+	static final Logger logger = Logger.getLogger(OutputWriter.class);
+
+	/** The prefix of the names of the scratch directories. */
+	public static final String scratchPrefix = ".DAT-";
+
+	/**
+	 * The durability modes.
+	 */
+	public enum Sync { NONE, FILE, DIRECTORY }
+
+	final Sync sync;
+	final int groupSize;
+	final HashMap<File,Group> groups = new HashMap<File,Group>();
+
+	/**
+	 * Construct an OutputWriter that does not force anything to disk.
+	 */
+	public OutputWriter() {
+		this(Sync.NONE, 1);
+	}
+
+	/**
+	 * Construct an OutputWriter.
+	 * @param sync the durability mode.
+	 * @param groupSize the maximum number of objects per directory sync in DIRECTORY mode.
+	 */
+	public OutputWriter(Sync sync, int groupSize) {
+		this.sync = sync;
+		this.groupSize = Math.max(1, groupSize);
+	}
+
+	/**
+	 * Parse a sync mode specification: none, file or dir.
+	 * @param mode the specification.
+	 * @return the mode.
+	 * @throws IllegalArgumentException if the specification is not recognized.
+	 */
+	public static Sync parseSync(String mode) {
+		String m = mode.trim().toLowerCase();
+		if (m.equals("none")) return Sync.NONE;
+		if (m.equals("file")) return Sync.FILE;
+		if (m.equals("dir") || m.equals("directory")) return Sync.DIRECTORY;
+		throw new IllegalArgumentException("Unknown sync mode: "+mode);
+	}
+
+	/**
+	 * Create a scratch directory for the intermediate files of an output,
+	 * in the same directory as the output so the final move of a file
+	 * from it does not cross file systems. The name of the directory
+	 * starts with the scratch prefix, so a directory left by a run that
+	 * did not finish can be found by sweep().
+	 * @param outFile the final output file.
+	 * @return the scratch directory.
+	 * @throws IOException if the directory cannot be created.
+	 */
+	public File createTempDirectory(File outFile) throws IOException {
+		File dir = outFile.getAbsoluteFile().getParentFile();
+		return Files.createTempDirectory(dir.toPath(), scratchPrefix + outFile.getName() + ".").toFile();
+	}
+
+	/**
+	 * Delete the scratch directories left by runs that did not finish.
+	 * The scratch directories hold intermediate objects, including the
+	 * decompressed original, so they must not survive in the output tree.
+	 * This is to be called before a run starts writing, and it must not
+	 * be called while another run is writing to the same outputs.
+	 * @param outFile the output directory, whose whole tree is swept,
+	 * or the output file, in whose directory only its own scratch
+	 * directories are deleted.
+	 * @return the number of scratch directories deleted.
+	 */
+	public static int sweep(File outFile) {
+		final int[] count = new int[1];
+		File out = outFile.getAbsoluteFile();
+		if (out.isDirectory()) {
+			try {
+				Files.walkFileTree(out.toPath(), new SimpleFileVisitor<Path>() {
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						if (!dir.getFileName().toString().startsWith(scratchPrefix)) return FileVisitResult.CONTINUE;
+						delete(dir.toFile(), count);
+						return FileVisitResult.SKIP_SUBTREE;
+					}
+					public FileVisitResult visitFileFailed(Path file, IOException ex) {
+						logger.debug("Unable to sweep "+file, ex);
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			catch (IOException ex) { logger.warn("Unable to sweep "+out, ex); }
+		}
+		else {
+			File[] files = out.getParentFile().listFiles();
+			if (files != null) {
+				String prefix = scratchPrefix + out.getName() + ".";
+				for (File file : files) {
+					if (file.isDirectory() && file.getName().startsWith(prefix)) delete(file, count);
+				}
+			}
+		}
+		return count[0];
+	}
+
+	private static void delete(File dir, int[] count) {
+		if (FileUtil.deleteAll(dir)) count[0]++;
+		else logger.warn("Unable to delete the scratch directory "+dir);
+	}
+
+	/**
+	 * Move a completely processed object into place.
+	 * @param tempFile the temporary file containing the object.
+	 * @param outFile the final output file.
+	 * @throws IOException if the object cannot be forced to disk or moved.
+	 */
+	public void commit(File tempFile, File outFile) throws IOException {
+		Path temp = tempFile.toPath();
+		Path out = outFile.toPath();
+		if (sync != Sync.NONE) force(temp, false);
+		File dir = outFile.getAbsoluteFile().getParentFile();
+		if (sync == Sync.DIRECTORY) {
+			commitToGroup(dir, new Entry(temp, out));
+			return;
+		}
+		move(temp, out);
+		if (sync == Sync.FILE) force(dir.toPath(), true);
+	}
+
+	//Queue an object for its directory's group and wait until it is in place.
+	//If no thread is syncing the directory, this thread leads: it moves the
+	//queued objects into place and forces the directory, a group at a time,
+	//until its own object is done, and then hands the lead to a waiting thread.
+	private void commitToGroup(File dir, Entry entry) throws IOException {
+		Group group;
+		boolean lead;
+		boolean interrupted = false;
+		synchronized (groups) {
+			group = groups.get(dir);
+			if (group == null) {
+				group = new Group();
+				groups.put(dir, group);
+			}
+			group.queue.add(entry);
+			while (!entry.done && group.leading) {
+				try { groups.wait(); }
+				catch (InterruptedException ex) { interrupted = true; }
+			}
+			lead = !entry.done;
+			if (lead) group.leading = true;
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+		if (lead) lead(dir, group, entry);
+		if (entry.error != null) throw entry.error;
+	}
+
+	//Sync groups of a directory until an object is done.
+	private void lead(File dir, Group group, Entry entry) throws IOException {
+		List<Entry> batch = new ArrayList<Entry>();
+		try {
+			while (!entry.done) {
+				batch.clear();
+				synchronized (groups) {
+					while ((batch.size() < groupSize) && !group.queue.isEmpty()) {
+						batch.add(group.queue.remove());
+					}
+				}
+				for (Entry e : batch) {
+					try { move(e.temp, e.out); }
+					catch (IOException ex) { e.error = ex; }
+				}
+				force(dir.toPath(), true);
+				synchronized (groups) {
+					for (Entry e : batch) e.done = true;
+					groups.notifyAll();
+				}
+			}
+		}
+		finally {
+			synchronized (groups) {
+				//If the lead ended abnormally, fail the objects it had taken.
+				for (Entry e : batch) {
+					if (!e.done) {
+						e.error = new IOException("Unable to move "+e.temp+" into place");
+						e.done = true;
+					}
+				}
+				group.leading = false;
+				if (group.queue.isEmpty()) groups.remove(dir);
+				groups.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Discard the temporary file or scratch directory of an object
+	 * that was not completely processed.
+	 * @param tempFile the temporary file or directory, or null.
+	 */
+	public void abort(File tempFile) {
+		if (tempFile != null) FileUtil.deleteAll(tempFile);
+	}
+
+	//Move a file into place, atomically if the file system supports it.
+	private static void move(Path temp, Path out) throws IOException {
+		try {
+			Files.move(temp, out, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException ex) {
+			Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	//Force a file or directory to disk. Some platforms cannot open a
+	//directory for syncing; on those, the directory sync is skipped.
+	private static void force(Path path, boolean isDirectory) throws IOException {
+		FileChannel channel = null;
+		try {
+			channel = FileChannel.open(path, isDirectory ? StandardOpenOption.READ : StandardOpenOption.WRITE);
+			channel.force(true);
+		}
+		catch (IOException ex) {
+			if (!isDirectory) throw ex;
+			logger.debug("Unable to sync directory "+path, ex);
+		}
+		finally {
+			if (channel != null) channel.close();
+		}
+	}
+
+	//An object waiting to be moved into place in DIRECTORY mode.
+	static class Entry {
+		final Path temp;
+		final Path out;
+		boolean done = false;
+		IOException error = null;
+
+		Entry(Path temp, Path out) {
+			this.temp = temp;
+			this.out = out;
+		}
+	}
+
+	//The objects waiting for a directory, and whether a thread is syncing it.
+	static class Group {
+		final LinkedList<Entry> queue = new LinkedList<Entry>();
+		boolean leading = false;
+	}
+}
@@ -0,0 +1,171 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.io.File;
+import java.util.*;
+import org.rsna.ctp.objects.DicomObject;
+
+/**
+ * A pre-scan of the work queue that orders the files by estimated cost,
+ * largest first (longest-processing-time-first scheduling), so that a
+ * large object at the end of the directory listing does not leave one
+ * thread running long after the others are idle.
+ * <p>
+ * The cost of a file is its size plus, if pixel stages are to be run,
+ * the decoded footprint estimated from its header. Before the files are
+ * dispatched, the scan simulates the schedules of the sorted queue and of
+ * the queue in directory order on the threads that will process them,
+ * and predicts the makespan of each in cost units, so the benefit of the
+ * sort is known independently of the run it is applied to. It also
+ * predicts the tail of each schedule, the part of the makespan after the
+ * first thread runs out of work, as a fraction of the makespan, which can
+ * be compared with the tail measured in the run.
+ */
+public class PreScanner {
+
+	final boolean pixelStages;
+	final List<WorkItem> items = new ArrayList<WorkItem>();
+	long scanTime = 0;
+	int threads = 1;
+	long totalCost = 0;
+	long[] sorted = new long[2];
+	long[] directory = new long[2];
+
+	/**
+	 * One file to be processed, with its estimated cost.
+	 */
+	public static class WorkItem {
+		public final File inFile;
+		public final File outFile;
+		long length = 0;
+		long footprint = 0;
+
+		WorkItem(File inFile, File outFile) {
+			this.inFile = inFile;
+			this.outFile = outFile;
+		}
+
+		/**
+		 * Get the estimated cost of processing the file.
+		 * @return the file size plus the estimated decoded pixel footprint.
+		 */
+		public long getCost() {
+			return length + footprint;
+		}
+	}
+
+	/**
+	 * Construct a PreScanner.
+	 * @param pixelStages true if the decoded footprint of images is to be
+	 * included in their cost because pixel stages will be run on them.
+	 */
+	public PreScanner(boolean pixelStages) {
+		this.pixelStages = pixelStages;
+	}
+
+	/**
+	 * Add a file to the work queue.
+	 * @param inFile the file to anonymize.
+	 * @param outFile the file in which to store the anonymized object.
+	 */
+	public void add(File inFile, File outFile) {
+		items.add(new WorkItem(inFile, outFile));
+	}
+
+	/**
+	 * Read the sizes and, if necessary, the headers of all the files,
+	 * predict the makespans of the sorted and unsorted work queues,
+	 * and sort the work queue by estimated cost, largest first.
+	 * @param threads the number of threads that will process the queue.
+	 * @return the sorted work queue.
+	 */
+	public List<WorkItem> scan(int threads) {
+		long startTime = System.currentTimeMillis();
+		items.parallelStream().forEach(item -> {
+			item.length = item.inFile.length();
+			if (pixelStages) {
+				DicomObject dob = null;
+				try {
+					dob = new DicomObject(item.inFile);
+					item.footprint = MemoryBudget.estimateFootprint(dob);
+				}
+				catch (Exception notDICOM) { }
+				finally { if (dob != null) dob.close(); }
+			}
+		});
+		this.threads = Math.max(1, threads);
+		totalCost = 0;
+		for (WorkItem item : items) totalCost += item.getCost();
+		directory = simulate(items, this.threads);
+		Collections.sort(items, new Comparator<WorkItem>() {
+			public int compare(WorkItem a, WorkItem b) {
+				return Long.compare(b.getCost(), a.getCost());
+			}
+		});
+		sorted = simulate(items, this.threads);
+		scanTime = System.currentTimeMillis() - startTime;
+		return items;
+	}
+
+	/**
+	 * Simulate the list schedule of a work queue, in which each item goes
+	 * to the first thread to become idle.
+	 * @param queue the items in the order in which they are dispatched.
+	 * @param threads the number of processing threads.
+	 * @return the makespan, which is the cost assigned to the most heavily
+	 * loaded thread, and the cost assigned to the most lightly loaded one,
+	 * at which point the first thread runs out of work.
+	 */
+	public static long[] simulate(List<WorkItem> queue, int threads) {
+		PriorityQueue<Long> loads = new PriorityQueue<Long>();
+		for (int i=0; i<Math.max(1, threads); i++) loads.add(0L);
+		long max = 0;
+		for (WorkItem item : queue) {
+			long load = loads.poll() + item.getCost();
+			max = Math.max(max, load);
+			loads.add(load);
+		}
+		return new long[] { max, loads.peek() };
+	}
+
+	/**
+	 * Get a report of the predicted makespans of the sorted work queue
+	 * and of the work queue in directory order, in units of estimated cost,
+	 * with the predicted and actual tails.
+	 * @param firstIdleTime the time from the dispatch of the work queue at
+	 * which the first thread ran out of work, in seconds, or a negative
+	 * value if it is not known.
+	 * @param elapsedTime the time from the dispatch of the work queue to the
+	 * end of the last file, in seconds.
+	 * @return the report.
+	 */
+	public String getReport(double firstIdleTime, double elapsedTime) {
+		double mb = 1024. * 1024.;
+		double ratio = (directory[0] > 0) ? 100. * sorted[0] / directory[0] : 100.;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(
+			"Pre-scan: %d files, %.1f MB estimated cost, scan time %.3f\n"
+			+ "Predicted makespan over %d thread%s: %.1f MB largest first, %.1f MB in directory order (%.1f%%)\n"
+			+ "Predicted tail: %.1f%% of the makespan largest first, %.1f%% in directory order",
+			items.size(), totalCost/mb, ((double)scanTime)/1000., threads, ((threads > 1) ? "s" : ""),
+			sorted[0]/mb, directory[0]/mb, ratio, getTail(sorted), getTail(directory)));
+		if ((firstIdleTime >= 0) && (elapsedTime > 0)) {
+			double tail = Math.max(0., elapsedTime - firstIdleTime);
+			sb.append(String.format(
+				"\nActual tail:    %.1f%% of the makespan (%.3f from the first idle thread at %.3f to the end at %.3f)",
+				100. * tail / elapsedTime, tail, firstIdleTime, elapsedTime));
+		}
+		return sb.toString();
+	}
+
+	//Get the tail of a simulated schedule as a percentage of its makespan.
+	private static double getTail(long[] schedule) {
+		return (schedule[0] > 0) ? 100. * (schedule[0] - schedule[1]) / schedule[0] : 0.;
+	}
+}
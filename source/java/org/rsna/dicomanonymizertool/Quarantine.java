@@ -0,0 +1,113 @@
+/*---------------------------------------------------------------
+*  Copyright 2021 by the Radiological Society of North America
+*
+*  This source software is released under the terms of the
+*  RSNA Public License (http://mirc.rsna.org/rsnapubliclicense)
+*----------------------------------------------------------------*/
+
+package org.rsna.dicomanonymizertool;
+
+import java.io.*;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.apache.log4j.Logger;
+
+/**
+ * A directory for the inputs that could not be anonymized. Each failed
+ * input is copied into the directory (the original is left in place) and
+ * recorded in a tab-delimited manifest, quarantine.txt, with the time, the
+ * path of the original, the name of the copy and the reason for the failure.
+ * The names of the copies start with the time the Quarantine was created,
+ * and an existing copy is never replaced, so several runs can share the
+ * directory and every line of the manifest names its own copy.
+ */
+public class Quarantine {
+
+	static final Logger logger = Logger.getLogger(Quarantine.class);
+
+	final File dir;
+	final File manifest;
+	final String runID;
+	int count = 0;
+	int sequence = 0;
+
+	/**
+	 * Construct a Quarantine, creating the directory if necessary.
+	 * @param dir the quarantine directory.
+	 */
+	public Quarantine(File dir) {
+		this.dir = dir;
+		dir.mkdirs();
+		this.manifest = new File(dir, "quarantine.txt");
+		this.runID = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+	}
+
+	/**
+	 * Quarantine the input of a failed result.
+	 * @param result the result.
+	 */
+	public synchronized void add(AnonymizerResult result) {
+		File inFile = result.getInputFile();
+		if (inFile == null) return;
+		count++;
+		String copyName;
+		try {
+			if (inFile.exists()) {
+				//Another run started in the same second may have used the name.
+				while (true) {
+					copyName = String.format("%s-%06d-%s", runID, ++sequence, inFile.getName());
+					try {
+						Files.copy(inFile.toPath(), new File(dir, copyName).toPath());
+						break;
+					}
+					catch (FileAlreadyExistsException taken) { }
+				}
+			}
+			else copyName = "(missing)";
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to copy "+inFile+" to the quarantine", ex);
+			copyName = "(not copied)";
+		}
+		String time = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date());
+		String line = time + "\t" + inFile.getAbsolutePath() + "\t" + copyName + "\t" + getReason(result) + "\n";
+		Writer writer = null;
+		try {
+			writer = new OutputStreamWriter(new FileOutputStream(manifest, true), "UTF-8");
+			writer.write(line);
+		}
+		catch (Exception ex) {
+			logger.warn("Unable to update the quarantine manifest", ex);
+		}
+		finally {
+			if (writer != null) {
+				try { writer.close(); }
+				catch (Exception ignore) { }
+			}
+		}
+	}
+
+	/**
+	 * Get the number of inputs quarantined.
+	 * @return the number of inputs quarantined since the Quarantine was constructed.
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * Get the reason for a failure: the last line of the result's log
+	 * other than the notice that processing was aborted.
+	 * @param result the result.
+	 * @return the reason.
+	 */
+	public static String getReason(AnonymizerResult result) {
+		String[] lines = result.getLog().trim().split("\n");
+		for (int i=lines.length-1; i>0; i--) {
+			if (!lines[i].trim().startsWith("Aborting")) return lines[i].trim();
+		}
+		return lines[0].trim();
+	}
+}